@@ -3,15 +3,18 @@ package com.pa.client.controllers;
 import com.pa.client.AppState;
 import com.pa.client.ClientApp;
 import com.pa.client.service.ApiService;
+import com.pa.client.service.ChatCache;
+import com.pa.client.service.ChatLog;
 import com.pa.client.service.RealtimeClient;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 
 import java.io.IOException;
-import java.nio.file.*;
 import java.util.*;
 
 public class ChatController {
@@ -19,17 +22,33 @@ public class ChatController {
     @FXML
     private ListView<Conversation> convList;
     @FXML
-    private VBox messagesBox;
-    @FXML
-    private ScrollPane messagesScroll;
+    private ListView<ChatMessages.Message> messageList;
     @FXML
     private TextField inputField, searchField;
 
+    private static final int HISTORY_PAGE = 50;
+
     private int currentConvId = -1;
     private int lastMsgId = 0;
+    // FX thread only: ids of the messages on screen, and the beforeId of the next older
+    // page (-1: none, or the first page has not arrived yet)
+    private final Set<Integer> shownIds = new HashSet<>();
+    private int olderBeforeId = -1;
+    private boolean olderLoading;
+    // FX thread only: the newest page, from the local cache or the server, is on screen
+    private boolean firstPageShown;
+    // FX thread: the cache holds every message of the open conversation up to cachedThrough
+    // (-1: not known). Pushes go straight to it only while cacheLive; until then they are
+    // held and stored once a fetch has joined them up with what is cached.
+    private int cachedThrough = -1;
+    private boolean cacheLive;
+    private final List<ChatCache.Message> heldForCache = new ArrayList<>();
+    private ChatMessages messages = new ChatMessages();
 
     private final RealtimeClient rt = RealtimeClient.get();
     private final java.util.function.Consumer<RealtimeClient.Msg> pushHandler = this::onPushedMessage;
+    // the server skipped pushes to us (we fell behind): fetch what was missed
+    private final Runnable resyncHandler = () -> Platform.runLater(this::resync);
     // texts we've sent but are awaiting server confirmation (used to avoid
     // duplicate local+push)
     private final Set<String> pendingOutgoing = Collections.synchronizedSet(new HashSet<>());
@@ -61,6 +80,7 @@ public class ChatController {
         try {
             rt.ensureConnected("127.0.0.1", 5555);
             rt.authIfNeeded(ClientApp.userId);
+            rt.addResyncListener(resyncHandler);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -84,6 +104,21 @@ public class ChatController {
 
         loadConversations();
 
+        messageList.setItems(messages);
+        messageList.setFocusTraversable(false);
+        messageList.setCellFactory(lv -> new MessageCell());
+        // the page before the first row once the user has scrolled to the top, as the feed
+        // pages on vvalue; the ScrollBar comes with the skin
+        messageList.skinProperty().addListener((obs, o, skin) -> {
+            for (Node n : messageList.lookupAll(".scroll-bar")) {
+                if (n instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL)
+                    bar.valueProperty().addListener((b, old, v) -> {
+                        if (v.doubleValue() <= bar.getMin() && bar.isVisible())
+                            loadOlder();
+                    });
+            }
+        });
+
         convList.getSelectionModel().selectedItemProperty().addListener((obs, o, n) -> {
             if (n != null) {
                 if (currentConvId > 0) {
@@ -93,7 +128,15 @@ public class ChatController {
                 currentConvId = n.id;
                 AppState.selectedConversationId = currentConvId;
                 lastMsgId = 0;
-                messagesBox.getChildren().clear();
+                shownIds.clear();
+                olderBeforeId = -1;
+                olderLoading = false;
+                firstPageShown = false;
+                cachedThrough = -1;
+                cacheLive = false;
+                heldForCache.clear();
+                messages = new ChatMessages();
+                messageList.setItems(messages);
                 fetchMessages();
                 rt.addListener(currentConvId, pushHandler);
                 rt.subscribe(currentConvId);
@@ -101,109 +144,312 @@ public class ChatController {
         });
     }
 
+    /** The cached list first, if any; the server's replaces it only if it differs. */
     private void loadConversations() {
         new Thread(() -> {
+            List<ChatCache.Conv> cached = ChatCache.get().conversations(ClientApp.userId);
+            if (!cached.isEmpty()) {
+                List<Conversation> items = new ArrayList<>();
+                for (ChatCache.Conv c : cached)
+                    items.add(new Conversation(c.id(), c.title()));
+                Platform.runLater(() -> showConversations(items));
+            }
             try {
                 var api = new ApiService("127.0.0.1", 5555);
                 var lines = api.send("MY_CONVS|" + ClientApp.userId);
                 List<Conversation> items = new ArrayList<>();
+                List<ChatCache.Conv> toCache = new ArrayList<>();
                 for (String l : lines)
                     if (l.startsWith("CONV|")) {
                         var p = l.split("\\|", -1);
                         int id = Integer.parseInt(p[1]);
                         String title = p.length > 2 ? p[2] : ("Conversation " + id);
                         items.add(new Conversation(id, title));
+                        toCache.add(new ChatCache.Conv(id, title));
                     }
-                Platform.runLater(() -> {
-                    convList.getItems().setAll(items);
-                    if (currentConvId > 0) {
-                        for (Conversation c : items)
-                            if (c.id == currentConvId) {
-                                convList.getSelectionModel().select(c);
-                                break;
-                            }
-                    } else if (!items.isEmpty()) {
-                        convList.getSelectionModel().select(0);
-                    }
-                });
+                ChatCache.get().putConversations(ClientApp.userId, toCache);
+                if (!toCache.equals(cached))
+                    Platform.runLater(() -> showConversations(items));
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }).start();
     }
 
+    private void showConversations(List<Conversation> items) {
+        convList.getItems().setAll(items);
+        if (currentConvId > 0) {
+            for (Conversation c : items)
+                if (c.id == currentConvId) {
+                    convList.getSelectionModel().select(c);
+                    break;
+                }
+        } else if (!items.isEmpty()) {
+            convList.getSelectionModel().select(0);
+        }
+    }
+
+    /** Messages after lastMsgId; with nothing shown yet, the newest page instead. */
     private void fetchMessages() {
         if (currentConvId <= 0)
             return;
+        if (lastMsgId == 0 && !firstPageShown) {
+            openConversation(currentConvId);
+            return;
+        }
+        // from the end of the cached run when it is behind, so what is fetched joins it
+        fetchAfter(cachedThrough >= 0 ? Math.min(lastMsgId, cachedThrough) : lastMsgId);
+    }
+
+    /** Pushes were skipped (RESYNC) or the subscription restarted: the cache has a gap until the next fetch. */
+    private void resync() {
+        cacheLive = false;
+        fetchMessages();
+    }
+
+    /**
+     * Stores rows fetched after afterId, and the pushes held meanwhile, if they join up with
+     * what is cached; from then on pushes are stored as they come. A fetch that failed
+     * never gets here, so nothing after a gap is cached.
+     */
+    private void cacheFetched(int convId, int afterId, List<ChatCache.Message> rows) {
+        if (cachedThrough < 0 || afterId > cachedThrough)
+            return;
+        ChatCache.get().putMessages(convId, rows);
+        ChatCache.get().putMessages(convId, heldForCache);
+        for (ChatCache.Message m : rows)
+            cachedThrough = Math.max(cachedThrough, m.id());
+        for (ChatCache.Message m : heldForCache)
+            cachedThrough = Math.max(cachedThrough, m.id());
+        heldForCache.clear();
+        cacheLive = true;
+    }
+
+    private void fetchAfter(int afterId) {
         new Thread(() -> {
             try {
                 var api = new ApiService("127.0.0.1", 5555);
-                var lines = api.send("CHAT_FETCH|" + currentConvId + "|" + lastMsgId);
-                List<Region> bubbles = new ArrayList<>();
-                int maxId = lastMsgId;
-                for (String l : lines)
-                    if (l.startsWith("MSG|")) {
-                        var p = l.split("\\|", -1);
+                int convId = currentConvId;
+                var rows = api.call("CHAT_FETCH", String.valueOf(convId), String.valueOf(afterId));
+                List<ChatMessages.Message> fetched = new ArrayList<>();
+                List<ChatCache.Message> toCache = new ArrayList<>();
+                int maxId = afterId;
+                for (String[] p : rows)
+                    if (p[0].equals("MSG") && p.length >= 4) {
                         int id = Integer.parseInt(p[1]);
                         int sender = Integer.parseInt(p[2]);
                         String text = p[3];
+                        toCache.add(new ChatCache.Message(id, sender, text, p.length > 4 ? p[4] : ""));
                         // if this is a message we just sent locally and it's awaiting server echo, skip
                         // adding duplicate
                         if (sender == ClientApp.userId && pendingOutgoing.remove(text)) {
                             // still log and update max id
-                            logToFile(currentConvId, id, sender, text, (p.length > 4 ? p[4] : ""));
+                            ChatLog.get().append(convId, id, sender, text, (p.length > 4 ? p[4] : ""));
                             if (id > maxId)
                                 maxId = id;
                             continue;
                         }
-                        bubbles.add(buildBubble(sender == ClientApp.userId, text));
-                        logToFile(currentConvId, id, sender, text, (p.length > 4 ? p[4] : ""));
+                        fetched.add(new ChatMessages.Message(id, sender, text));
+                        ChatLog.get().append(convId, id, sender, text, (p.length > 4 ? p[4] : ""));
                         if (id > maxId)
                             maxId = id;
                     }
-                if (!bubbles.isEmpty()) {
-                    int finalMaxId = maxId;
-                    Platform.runLater(() -> {
-                        messagesBox.getChildren().addAll(bubbles);
-                        lastMsgId = finalMaxId;
-                        // auto-scroll to bottom
-                        messagesScroll.layout();
-                        messagesScroll.setVvalue(1.0);
-                    });
+                rt.markSeen(convId, maxId);
+                int finalMaxId = maxId;
+                Platform.runLater(() -> {
+                    if (currentConvId != convId)
+                        return;
+                    cacheFetched(convId, afterId, toCache);
+                    if (fetched.isEmpty())
+                        return;
+                    // pushes (live or replayed after a reconnect) may have shown some already
+                    for (ChatMessages.Message m : fetched)
+                        if (shownIds.add(m.id()))
+                            messages.append(m.id(), m.sender(), m.text());
+                    lastMsgId = Math.max(lastMsgId, finalMaxId);
+                    // auto-scroll to bottom
+                    messageList.scrollTo(messages.size() - 1);
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+    }
+
+    /**
+     * Shows the newest cached messages of convId at once, then asks the server only for
+     * what is newer (CHAT_FETCH|convId|maxCachedId); with nothing cached, the newest page
+     * comes from the server instead. Without a cache (it could not be opened) the local
+     * chat log stands in; it may miss messages, which the next history page brings back.
+     */
+    private void openConversation(int convId) {
+        new Thread(() -> {
+            List<ChatCache.Message> cached = localMessages(convId);
+            Platform.runLater(() -> {
+                if (currentConvId != convId || firstPageShown)
+                    return;
+                if (cached.isEmpty()) {
+                    loadHistory(0);
+                    return;
+                }
+                firstPageShown = true;
+                List<ChatMessages.Message> rows = new ArrayList<>(cached.size());
+                for (ChatCache.Message m : cached)
+                    if (shownIds.add(m.id()))
+                        rows.add(new ChatMessages.Message(m.id(), m.sender(), m.text()));
+                messages.prepend(rows);
+                int cachedMax = cached.get(cached.size() - 1).id();
+                cachedThrough = cachedMax;
+                lastMsgId = Math.max(lastMsgId, cachedMax);
+                olderBeforeId = cached.get(0).id();
+                messageList.scrollTo(messages.size() - 1);
+                fetchAfter(cachedMax);
+                if (cached.size() < HISTORY_PAGE)
+                    loadOlder();     // a short cached run may not fill the list, so no scroll would ask
+            });
+        }).start();
+    }
+
+    /** The newest page kept on disk: the cache, or the chat log when there is no cache. Not on the FX thread. */
+    private static List<ChatCache.Message> localMessages(int convId) {
+        List<ChatCache.Message> cached = ChatCache.get().messages(convId, HISTORY_PAGE);
+        if (!cached.isEmpty() || ChatCache.get().available())
+            return cached;
+        List<ChatCache.Message> logged = new ArrayList<>();
+        for (ChatLog.Entry e : ChatLog.get().recent(convId, HISTORY_PAGE))
+            logged.add(new ChatCache.Message(e.id(), e.sender(), e.text(), e.createdAt()));
+        return logged;
+    }
+
+    private void loadOlder() {
+        if (olderLoading || olderBeforeId <= 0)
+            return;
+        loadHistory(olderBeforeId);
+    }
+
+    /**
+     * One CHAT_HISTORY page: the newest messages (beforeId 0), scrolled to the bottom, or
+     * the page before beforeId, put above what is shown with the view kept on the row
+     * that was first. Asked for once the list is scrolled to the top.
+     */
+    private void loadHistory(int beforeId) {
+        int convId = currentConvId;
+        olderLoading = true;
+        new Thread(() -> {
+            List<String[]> msgs = new ArrayList<>();
+            int next = -1;
+            boolean ok = true;
+            try {
+                var api = new ApiService("127.0.0.1", 5555);
+                var rows = api.call("CHAT_HISTORY", String.valueOf(convId), String.valueOf(beforeId),
+                        String.valueOf(HISTORY_PAGE));
+                for (String[] p : rows) {
+                    if (p[0].equals("MSG") && p.length >= 4)
+                        msgs.add(p);
+                    else if (p[0].equals("PAGE_NEXT") && p.length >= 2)
+                        next = Integer.parseInt(p[1]);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+                next = beforeId > 0 ? beforeId : -1;     // keep the cursor so scrolling retries
+                ok = false;
             }
+            int cursor = next;
+            boolean loaded = ok;
+            Platform.runLater(() -> {
+                if (currentConvId != convId)
+                    return;     // switched conversations meanwhile
+                if (beforeId == 0)
+                    firstPageShown = true;
+                List<ChatMessages.Message> page = new ArrayList<>(msgs.size());
+                List<ChatCache.Message> toCache = new ArrayList<>(msgs.size());
+                int maxId = lastMsgId;
+                for (String[] p : msgs) {
+                    int id = Integer.parseInt(p[1]);
+                    int sender = Integer.parseInt(p[2]);
+                    toCache.add(new ChatCache.Message(id, sender, p[3], p.length > 4 ? p[4] : ""));
+                    if (!shownIds.add(id))
+                        continue;
+                    page.add(new ChatMessages.Message(id, sender, p[3]));
+                    maxId = Math.max(maxId, id);
+                }
+                messages.prepend(page);
+                if (beforeId == 0 && loaded) {
+                    // the newest page starts the cached run; older pages: the cache keeps recent ones only
+                    cachedThrough = 0;
+                    cacheFetched(convId, 0, toCache);
+                    for (ChatCache.Message m : toCache)     // so the log can stand in for a missing cache
+                        ChatLog.get().append(convId, m.id(), m.sender(), m.text(), m.createdAt());
+                }
+                olderBeforeId = cursor;
+                olderLoading = false;
+                if (beforeId == 0) {
+                    lastMsgId = maxId;
+                    rt.markSeen(convId, maxId);
+                    messageList.scrollTo(messages.size() - 1);
+                } else {
+                    // the row that was first, and so on top, is row page.size() now
+                    messageList.scrollTo(page.size());
+                }
+            });
         }).start();
     }
 
-    private HBox buildBubble(boolean mine, String text) {
-        Label bubble = new Label(text);
-        bubble.setWrapText(true);
-        bubble.getStyleClass().add(mine ? "msg-bubble-right" : "msg-bubble-left");
-        bubble.setMaxWidth(420);
-
-        HBox row = new HBox();
-        row.setFillHeight(true);
-        row.setAlignment(mine ? javafx.geometry.Pos.CENTER_RIGHT : javafx.geometry.Pos.CENTER_LEFT);
-        row.getChildren().add(bubble);
-        HBox.setMargin(bubble, new Insets(4, 6, 4, 6));
-        return row;
+    /**
+     * One bubble row, reused by the ListView for whichever message scrolls into its place:
+     * only the text, side and style class change.
+     */
+    private final class MessageCell extends ListCell<ChatMessages.Message> {
+        private final Label bubble = new Label();
+        private final HBox row = new HBox(bubble);
+
+        MessageCell() {
+            bubble.setWrapText(true);
+            bubble.setMaxWidth(420);
+            row.setFillHeight(true);
+            HBox.setMargin(bubble, new Insets(4, 6, 4, 6));
+            setText(null);
+        }
+
+        @Override
+        protected void updateItem(ChatMessages.Message item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            boolean mine = item.sender() == ClientApp.userId;
+            bubble.setText(item.text());
+            bubble.getStyleClass().setAll("label", mine ? "msg-bubble-right" : "msg-bubble-left");
+            row.setAlignment(mine ? javafx.geometry.Pos.CENTER_RIGHT : javafx.geometry.Pos.CENTER_LEFT);
+            setGraphic(row);
+        }
     }
 
     private void onPushedMessage(RealtimeClient.Msg m) {
         if (m.convId() != currentConvId)
             return;
         Platform.runLater(() -> {
+            if (m.convId() != currentConvId)
+                return;
+            ChatCache.Message c = new ChatCache.Message(m.id(), m.sender(), m.text(), m.createdAt());
+            if (cacheLive) {
+                ChatCache.get().putMessage(m.convId(), c);
+                cachedThrough = Math.max(cachedThrough, m.id());
+            } else {
+                heldForCache.add(c);
+            }
+            if (!shownIds.add(m.id()))
+                return;     // already shown: fetched, or replayed again on resubscribe
             // if this is an echo of our own recently-sent message, suppress duplicate
             if (m.sender() == ClientApp.userId && pendingOutgoing.remove(m.text())) {
                 lastMsgId = Math.max(lastMsgId, m.id());
                 return;
             }
-            messagesBox.getChildren().add(buildBubble(m.sender() == ClientApp.userId, m.text()));
+            messages.append(m.id(), m.sender(), m.text());
             lastMsgId = Math.max(lastMsgId, m.id());
         });
-        logToFile(m.convId(), m.id(), m.sender(), m.text(), m.createdAt());
+        ChatLog.get().append(m.convId(), m.id(), m.sender(), m.text(), m.createdAt());
     }
 
     public void onSend() {
@@ -214,14 +460,13 @@ public class ChatController {
         // show outgoing immediately to avoid waiting for server push
         pendingOutgoing.add(text);
         Platform.runLater(() -> {
-            messagesBox.getChildren().add(buildBubble(true, text));
-            messagesScroll.layout();
-            messagesScroll.setVvalue(1.0);
+            messages.append(0, ClientApp.userId, text);
+            messageList.scrollTo(messages.size() - 1);
         });
         new Thread(() -> {
             try {
                 var api = new ApiService("127.0.0.1", 5555);
-                api.send("CHAT_SEND|" + currentConvId + "|" + ClientApp.userId + "|" + text.replace("|", " "));
+                api.call("CHAT_SEND", String.valueOf(currentConvId), String.valueOf(ClientApp.userId), text);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -276,20 +521,19 @@ public class ChatController {
         }).start();
     }
 
-    private void logToFile(int convId, int id, int sender, String text, String ts) {
-        try {
-            Path dir = Path.of(System.getProperty("user.home"), ".perentalassist", "chatlogs");
-            Files.createDirectories(dir);
-            Path f = dir.resolve("conv_" + convId + ".txt");
-            String line = String.format("%s\t#%d\tfrom:%d\t%s%n", ts == null ? "" : ts, id, sender, text);
-            Files.writeString(f, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        } catch (IOException ignored) {
-        }
-    }
-
     // <<< ADDED: for chat.fxml button onAction="#goHome"
     public void goHome() {
+        detach();
         ClientApp.setScene("/fxml/home.fxml");
     }
+
+    /** Leaving the screen: RealtimeClient must not keep this controller alive or calling in. */
+    private void detach() {
+        rt.removeResyncListener(resyncHandler);
+        if (currentConvId > 0) {
+            rt.removeListener(currentConvId, pushHandler);
+            rt.unsubscribe(currentConvId);
+        }
+    }
     // >>>
 }
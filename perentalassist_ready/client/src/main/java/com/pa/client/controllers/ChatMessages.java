@@ -0,0 +1,88 @@
+package com.pa.client.controllers;
+
+import javafx.collections.ObservableListBase;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The messages of the open conversation, as the items of the chat ListView. Ids, senders
+ * and texts sit in parallel arrays with spare room at both ends, so an older page goes in
+ * front as cheaply as a new message at the back and nothing per message is kept but its
+ * text. get(i) hands out a short-lived {@link Message} for the cell showing row i; only
+ * the visible rows ever have one.
+ *
+ * FX thread only. Changing conversation means a new instance, not clearing this one.
+ */
+final class ChatMessages extends ObservableListBase<ChatMessages.Message> {
+
+    /** id 0: sent from here, not yet confirmed by the server. */
+    record Message(int id, int sender, String text) {
+    }
+
+    private int[] ids = new int[64];
+    private int[] senders = new int[64];
+    private String[] texts = new String[64];
+    private int head = 32;     // index of row 0 in the arrays
+    private int size;
+
+    @Override
+    public Message get(int index) {
+        Objects.checkIndex(index, size);
+        int i = head + index;
+        return new Message(ids[i], senders[i], texts[i]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    void append(int id, int sender, String text) {
+        ensureRoom(0, 1);
+        int i = head + size;
+        ids[i] = id;
+        senders[i] = sender;
+        texts[i] = text;
+        size++;
+        beginChange();
+        nextAdd(size - 1, size);
+        endChange();
+    }
+
+    /** Puts rows, oldest first, above the current first row. */
+    void prepend(List<Message> rows) {
+        int n = rows.size();
+        if (n == 0)
+            return;
+        ensureRoom(n, 0);
+        head -= n;
+        for (int k = 0; k < n; k++) {
+            Message m = rows.get(k);
+            ids[head + k] = m.id();
+            senders[head + k] = m.sender();
+            texts[head + k] = m.text();
+        }
+        size += n;
+        beginChange();
+        nextAdd(0, n);
+        endChange();
+    }
+
+    private void ensureRoom(int front, int back) {
+        if (head >= front && ids.length - head - size >= back)
+            return;
+        int cap = Math.max(ids.length * 2, size + front + back + 64);
+        int newHead = front + (cap - size - front - back) / 2;    // leave room on both sides again
+        int[] newIds = new int[cap];
+        int[] newSenders = new int[cap];
+        String[] newTexts = new String[cap];
+        System.arraycopy(ids, head, newIds, newHead, size);
+        System.arraycopy(senders, head, newSenders, newHead, size);
+        System.arraycopy(texts, head, newTexts, newHead, size);
+        ids = newIds;
+        senders = newSenders;
+        texts = newTexts;
+        head = newHead;
+    }
+}
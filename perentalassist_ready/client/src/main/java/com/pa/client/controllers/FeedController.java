@@ -4,6 +4,7 @@ import com.pa.client.AppState;
 import com.pa.client.ClientApp;
 import com.pa.client.service.ApiService;
 import com.pa.client.service.PushBus;
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
@@ -17,6 +18,7 @@ import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
+import javafx.util.Duration;
 
 import java.io.File;
 import java.io.IOException;
@@ -72,40 +74,216 @@ public class FeedController {
     private final Map<Integer, String> commentImageForPost = new HashMap<>();
     private String postImageUrl = "";
 
+    private static final int PAGE_SIZE = 20;
+
+    // next FEED_PAGE cursor; 0 = nothing loaded yet, -1 = reached the oldest post
+    private int nextBeforeId = 0;
+    private boolean pageLoading = false;
+    // after a failed FEED_PAGE: no page is asked for before pageRetryAt (ms), 0.5s doubling to 30s
+    private int pageFailures;
+    private long pageRetryAt;
+    // FEED_SINCE position; -1 until the first page told us
+    private long feedVersion = -1;
+    private final Map<Integer, Pane> cards = new HashMap<>();
+    private final Consumer<String[]> feedPush = this::onFeedPush;
+
     @FXML
     public void initialize() {
         feedBox.setSpacing(14);
         feedBox.setPadding(new Insets(16));
         if (postPreview != null)
             postPreview.setVisible(false);
+        // infinite scroll: fetch the next page once the user is close to the bottom
+        scroll.vvalueProperty().addListener((obs, old, v) -> {
+            if (v.doubleValue() >= 0.9)
+                loadNextPage();
+        });
+        // subscribe before the first page so nothing posted in between is missed
+        PushBus.get().subscribeFeed(feedPush);
         loadFeed();
     }
 
+    /** POST_NEW|id|userId|name|role|content|created|imageUrl or POST_DELETED|postId, on the FX thread. */
+    private void onFeedPush(String[] p) {
+        if (p[0].equals("RESYNC")) {
+            syncFeed();
+        } else if (p[0].equals("POST_DELETED")) {
+            removePost(Integer.parseInt(p[1]));
+        } else if (p.length >= 7) {
+            mergePost(new Post(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], p[4], p[5], p[6],
+                    p.length >= 8 ? p[7] : ""));
+        }
+    }
+
+    /** Drops this screen's push subscriptions; call before switching scenes. */
+    private void detach() {
+        PushBus.get().unsubscribeFeed(feedPush);
+        for (int postId : new ArrayList<>(liveHandlers.keySet()))
+            liveUnsubscribe(postId);
+    }
+
     // ===== Data =====
     private void loadFeed() {
         posts.clear();
+        cards.clear();
         feedBox.getChildren().clear();
+        nextBeforeId = 0;
+        feedVersion = -1;
+        pageLoading = false;
+        pageFailures = 0;
+        pageRetryAt = 0;
+        loadNextPage();
+    }
+
+    private void loadNextPage() {
+        if (pageLoading || nextBeforeId < 0 || System.currentTimeMillis() < pageRetryAt)
+            return;
+        pageLoading = true;
+        int before = nextBeforeId;
         new Thread(() -> {
+            List<Post> page = new ArrayList<>();
+            int next = -1;
+            long version = -1;
+            boolean ok = true;
             try {
                 var api = new ApiService("127.0.0.1", 5555);
-                var lines = api.send("FEED_HOME");
-                for (String l : lines)
-                    if (l.startsWith("POST|")) {
-                        var p = l.split("\\|", -1);
-                        posts.add(new Post(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], p[4], p[5], p[6],
-                                p.length >= 8 ? p[7] : ""));
+                var rows = api.call("FEED_PAGE", String.valueOf(before), String.valueOf(PAGE_SIZE));
+                for (String[] p : rows) {
+                    if (p[0].equals("POST") && p.length >= 7) {
+                        page.add(toPost(p));
+                    } else if (p[0].equals("PAGE_NEXT") && p.length >= 2) {
+                        next = Integer.parseInt(p[1]);
+                    } else if (p[0].equals("FEED_VERSION") && p.length >= 2) {
+                        version = Long.parseLong(p[1]);
                     }
-                Platform.runLater(this::renderFeed);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                next = before;     // keep the cursor so scrolling retries
+                ok = false;
             }
+            int cursor = next;
+            long v = version;
+            boolean loaded = ok;
+            Platform.runLater(() -> {
+                if (nextBeforeId != before)
+                    return;     // the feed was reloaded meanwhile
+                appendPosts(page);
+                nextBeforeId = cursor;
+                if (v >= 0) {
+                    feedVersion = v;
+                    syncFeed();     // covers posts made between the page read and FEED_SUB taking effect
+                }
+                pageLoading = false;
+                if (!loaded) {
+                    retryPageLater();
+                    return;
+                }
+                pageFailures = 0;
+                // a short first page may not fill the viewport, so no scroll event would follow
+                if (cursor > 0 && feedBox.getHeight() <= scroll.getViewportBounds().getHeight())
+                    loadNextPage();
+            });
         }).start();
     }
 
-    private void renderFeed() {
-        feedBox.getChildren().clear();
-        for (var p : posts)
-            feedBox.getChildren().add(buildPostCard(p));
+    /** Holds page loads back for the next backoff step, then tries again; scrolling also retries after it. */
+    private void retryPageLater() {
+        long delay = Math.min(30_000, 500L << Math.min(pageFailures++, 6));
+        long at = System.currentTimeMillis() + delay;
+        pageRetryAt = at;
+        PauseTransition wait = new PauseTransition(Duration.millis(delay));
+        wait.setOnFinished(e -> {
+            if (pageRetryAt != at)
+                return;     // reloaded, or failed again since
+            pageRetryAt = 0;
+            loadNextPage();
+        });
+        wait.play();
+    }
+
+    private void appendPosts(List<Post> page) {
+        for (var p : page) {
+            if (cards.containsKey(p.id))
+                continue;   // already merged in from a delta
+            Pane card = buildPostCard(p);
+            posts.add(p);
+            cards.put(p.id, card);
+            feedBox.getChildren().add(card);
+        }
+    }
+
+    /** Pulls what changed since feedVersion and merges it into the cards already shown. */
+    private void syncFeed() {
+        long since = feedVersion;
+        if (since < 0)
+            return;
+        new Thread(() -> {
+            try {
+                var api = new ApiService("127.0.0.1", 5555);
+                var rows = api.call("FEED_SINCE", String.valueOf(since));
+                Platform.runLater(() -> {
+                    if (feedVersion == since)
+                        applyDelta(rows);
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }).start();
+    }
+
+    private void applyDelta(List<String[]> rows) {
+        for (String[] p : rows) {
+            if (p[0].equals("POST") && p.length >= 7) {
+                mergePost(toPost(p));
+            } else if (p[0].equals("POST_DEL") && p.length >= 2) {
+                removePost(Integer.parseInt(p[1]));
+            } else if (p[0].equals("FEED_VERSION") && p.length >= 2) {
+                feedVersion = Long.parseLong(p[1]);
+            } else if (p[0].equals("FEED_RESET")) {
+                loadFeed();
+                return;
+            }
+        }
+    }
+
+    /** POST|id|userId|name|role|content|created[|imageUrl] */
+    private static Post toPost(String[] p) {
+        return new Post(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], p[4], p[5], p[6],
+                p.length >= 8 ? p[7] : "");
+    }
+
+    /** New or edited post: replace its card in place, or insert it by id (newest first). */
+    private void mergePost(Post p) {
+        Pane old = cards.get(p.id);
+        if (old != null) {
+            int i = feedBox.getChildren().indexOf(old);
+            Pane card = buildPostCard(p);
+            posts.set(i, p);
+            feedBox.getChildren().set(i, card);
+            cards.put(p.id, card);
+            return;
+        }
+        int at = 0;
+        while (at < posts.size() && posts.get(at).id > p.id)
+            at++;
+        if (at == posts.size() && nextBeforeId >= 0)
+            return;     // older than what is loaded; paging will bring it
+        Pane card = buildPostCard(p);
+        posts.add(at, p);
+        feedBox.getChildren().add(at, card);
+        cards.put(p.id, card);
+    }
+
+    private void removePost(int postId) {
+        Pane card = cards.remove(postId);
+        if (card == null)
+            return;
+        int i = feedBox.getChildren().indexOf(card);
+        if (i >= 0) {
+            feedBox.getChildren().remove(i);
+            posts.remove(i);
+        }
     }
 
     // ===== UI =====
@@ -140,7 +318,7 @@ public class FeedController {
         Button delBtn = null;
         if (p.userId == ClientApp.userId) {
             delBtn = new Button("Delete");
-            delBtn.setOnAction(ev -> deletePost(p, card));
+            delBtn.setOnAction(ev -> deletePost(p));
             delBtn.setStyle("-fx-background-color:#ffe3e3;");
         }
 
@@ -224,11 +402,10 @@ public class FeedController {
         new Thread(() -> {
             try {
                 var api = new ApiService("127.0.0.1", 5555);
-                var lines = api.send("COMMENTS_WITH_USERS|" + postId);
+                var rows = api.call("COMMENTS_WITH_USERS", String.valueOf(postId));
                 List<Comment> cs = new ArrayList<>();
-                for (String l : lines)
-                    if (l.startsWith("COMMENT|")) {
-                        var p = l.split("\\|", -1);
+                for (String[] p : rows)
+                    if (p[0].equals("COMMENT") && p.length >= 7) {
                         cs.add(new Comment(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], p[4], p[5], p[6],
                                 p.length >= 8 ? p[7] : ""));
                     }
@@ -353,16 +530,10 @@ public class FeedController {
             try {
                 var api = new ApiService("127.0.0.1", 5555);
                 // send real userid and anonymous flag (1/0)
-                api.send("POST_CREATE|" + ClientApp.userId + "|" + text.replace("|", " ") + "|" + img + "|" + (anonymous ? 1 : 0));
-                var lines = api.send("FEED_HOME");
-                posts.clear();
-                for (String l : lines)
-                    if (l.startsWith("POST|")) {
-                        var p = l.split("\\|", -1);
-                        posts.add(new Post(Integer.parseInt(p[1]), Integer.parseInt(p[2]), p[3], p[4], p[5], p[6],
-                                p.length >= 8 ? p[7] : ""));
-                    }
-                Platform.runLater(this::renderFeed);
+                api.call("POST_CREATE", String.valueOf(ClientApp.userId), text, img, anonymous ? "1" : "0");
+                // the POST_NEW push brings it in; only fetch when the push channel is down
+                if (!PushBus.get().isConnected())
+                    Platform.runLater(this::syncFeed);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -383,8 +554,7 @@ public class FeedController {
         new Thread(() -> {
             try {
                 var api = new ApiService("127.0.0.1", 5555);
-                api.send(
-                        "COMMENT_CREATE|" + postId + "|" + ClientApp.userId + "|" + text.replace("|", " ") + "|" + img);
+                api.call("COMMENT_CREATE", String.valueOf(postId), String.valueOf(ClientApp.userId), text, img);
                 // live push will append
             } catch (IOException e) {
                 e.printStackTrace();
@@ -393,7 +563,7 @@ public class FeedController {
     }
 
     // ===== Delete actions =====
-    private void deletePost(Post p, VBox card) {
+    private void deletePost(Post p) {
         if (!confirm("Delete this post?"))
             return;
         new Thread(() -> {
@@ -402,7 +572,7 @@ public class FeedController {
                 var resp = api.send("POST_DELETE|" + p.id + "|" + ClientApp.userId);
                 for (String l : resp)
                     if (l.startsWith("POST_DEL_OK|")) {
-                        Platform.runLater(() -> feedBox.getChildren().remove(card));
+                        Platform.runLater(() -> removePost(p.id));
                         return;
                     }
                 Platform.runLater(() -> alert("Delete failed."));
@@ -468,6 +638,7 @@ public class FeedController {
                     if (l.startsWith("CHAT_OK|")) {
                         int convId = Integer.parseInt(l.split("\\|")[1]);
                         Platform.runLater(() -> {
+                            detach();
                             AppState.selectedConversationId = convId;
                             ClientApp.setScene("/fxml/chat.fxml");
                         });
@@ -552,6 +723,7 @@ public class FeedController {
     }
 
     public void goHome() {
+        detach();
         ClientApp.setScene("/fxml/home.fxml");
     }
 
@@ -559,6 +731,7 @@ public class FeedController {
         AppState.profileUserId = userId;
         AppState.profileDisplayName = name;
         AppState.profileRole = role == null ? "USER" : role;
+        detach();
         ClientApp.setScene("/fxml/profile.fxml");
     }
 }
@@ -1,15 +1,8 @@
 package com.pa.client.service;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -39,58 +32,43 @@ public class ApiService {
   }
 
   /**
-   * ORIGINAL behavior (unchanged):
-   * Opens a short-lived socket, sends command, collects lines.
-   * Stops at:
-   *  - "END"
-   *  - any line starting with "ERR"
-   *  - any line ending with "_OK"
-   *  - "LOGIN_OK..." or "SIGNUP_OK..."
+   * Sends one command and returns all of its response lines ("END", "ERR...", "..._OK"
+   * included, as before).
+   *
+   * Used to open a short-lived socket per call; it now goes over the shared persistent
+   * connections of {@link ConnectionManager}, tagged so responses can't get mixed up.
    *
    * Additionally (non-breaking): updates static current user when it sees LOGIN_OK/AUTH_OK.
    */
   public List<String> send(String line) throws IOException {
-    try (Socket s = new Socket(host, port);
-         BufferedReader in = new BufferedReader(
-                 new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-         PrintWriter out = new PrintWriter(
-                 new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
-
-      // Server greets
-      in.readLine(); // "WELCOME" (ignored if absent)
-
-      // Send command
-      out.println(line);
-
-      List<String> resp = new ArrayList<>();
-      String r;
-      while ((r = in.readLine()) != null) {
-        resp.add(r);
-
-        // Update session tracking if present
-        if (r.startsWith("LOGIN_OK|")) {
-          // LOGIN_OK|<userId>|<display>|<role>
-          String[] p = r.split("\\|", 4);
-          if (p.length >= 2) {
-            currentUserId = p[1];
-            // Best-effort also store name
-            if (p.length >= 3) currentUserName = p[2];
-          }
-          break;
-        }
-        if (r.startsWith("AUTH_OK|")) {
-          // AUTH_OK|<userId>
-          String[] p = r.split("\\|", 2);
-          if (p.length >= 2) currentUserId = p[1];
-          break;
-        }
+    List<String> resp = ConnectionManager.get(host, port).send(line);
+    for (String r : resp) {
+      // Update session tracking if present
+      if (r.startsWith("LOGIN_OK|") || r.startsWith("AUTH_OK|")) track(r.split("\\|", 4));
+    }
+    return resp;
+  }
 
-        if ("END".equals(r)) break;
-        if (r.startsWith("ERR")) break;
-        if (r.endsWith("_OK")) break;
-        if (r.startsWith("SIGNUP_OK")) break;
-      }
-      return resp;
+  /**
+   * Like {@link #send} but with the command and each response line as fields, so text
+   * containing '|' or line breaks (post, comment and chat content) arrives unchanged.
+   */
+  public List<String[]> call(String... fields) throws IOException {
+    List<String[]> resp = ConnectionManager.get(host, port).call(fields);
+    for (String[] r : resp) track(r);
+    return resp;
+  }
+
+  private static void track(String[] p) {
+    if (p.length < 2) return;
+    if (p[0].equals("LOGIN_OK")) {
+      // LOGIN_OK|<userId>|<display>|<role>
+      currentUserId = p[1];
+      // Best-effort also store name
+      if (p.length >= 3) currentUserName = p[2];
+    } else if (p[0].equals("AUTH_OK")) {
+      // AUTH_OK|<userId>
+      currentUserId = p[1];
     }
   }
 
@@ -0,0 +1,319 @@
+package com.pa.client.service;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Conversations and recent messages as last seen from the server, in a local SQLite
+ * database (~/.perentalassist/chatcache.db) keyed by the server's ids, so the chat screen
+ * can draw before the server answers and then ask only for what is newer
+ * (CHAT_FETCH|convId|maxCachedId).
+ *
+ * Titles and message texts are stored encrypted with AES-GCM under a random key kept next
+ * to the database in chatcache.key (owner-only where the file system allows). This keeps
+ * them out of copies and backups of the database file; it does not protect against
+ * someone who can read the user's files. A row that does not decrypt (another key, a
+ * damaged file) is treated as not cached.
+ *
+ * Writes are queued and committed in batches by one background thread; reads wait for
+ * that thread, so they see every earlier write, and are not for the FX thread. Each
+ * conversation keeps its newest pa.client.cache.messages (500) messages. If the database
+ * cannot be opened the cache stays empty and the screen reads {@link ChatLog} instead.
+ */
+public class ChatCache {
+    private static final int KEEP = Math.max(1, Integer.getInteger("pa.client.cache.messages", 500));
+    private static final int NONCE = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final ChatCache INSTANCE = new ChatCache(Path.of(System.getProperty("user.home"), ".perentalassist"));
+    public static ChatCache get() { return INSTANCE; }
+
+    public static record Conv(int id, String title) {}
+
+    public static record Message(int id, int sender, String text, String createdAt) {}
+
+    private final Path dir;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pa-chatcache");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Queue<Runnable> writes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final SecureRandom random = new SecureRandom();
+    // worker thread only; db null until opened, and for good if opening failed
+    private Connection db;
+    private SecretKey key;
+    private Cipher cipher;     // re-initialised for every row
+    private boolean openTried;
+
+    private ChatCache(Path dir) {
+        this.dir = dir;
+    }
+
+    // ---- reads (wait for the worker)
+
+    /** The conversation list last stored for userId, in its order. */
+    public List<Conv> conversations(int userId) {
+        return read(List.of(), () -> {
+            List<Conv> out = new ArrayList<>();
+            try (PreparedStatement ps = db.prepareStatement(
+                    "SELECT conv_id, title FROM conversations WHERE user_id=? ORDER BY position")) {
+                ps.setInt(1, userId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String title = decrypt(rs.getBytes(2), "conv", userId, rs.getInt(1));
+                        if (title == null)
+                            return List.of();     // all of them or none, the order matters
+                        out.add(new Conv(rs.getInt(1), title));
+                    }
+                }
+            }
+            return out;
+        });
+    }
+
+    /** The limit newest cached messages of convId, lowest id first. */
+    public List<Message> messages(int convId, int limit) {
+        return read(List.of(), () -> {
+            List<Message> out = new ArrayList<>();
+            try (PreparedStatement ps = db.prepareStatement(
+                    "SELECT id, sender, content, created_at FROM messages WHERE conv_id=? ORDER BY id DESC LIMIT ?")) {
+                ps.setInt(1, convId);
+                ps.setInt(2, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String text = decrypt(rs.getBytes(3), "msg", convId, rs.getInt(1));
+                        if (text == null)
+                            break;     // keep what is newer: still one unbroken run of ids
+                        out.add(new Message(rs.getInt(1), rs.getInt(2), text, rs.getString(4)));
+                    }
+                }
+            }
+            Collections.reverse(out);
+            return out;
+        });
+    }
+
+    /** False if the database could not be opened, so nothing is cached this run. */
+    public boolean available() {
+        return read(false, () -> true);
+    }
+
+    // ---- writes (queued)
+
+    public void putConversations(int userId, List<Conv> convs) {
+        List<Conv> copy = List.copyOf(convs);
+        write(() -> {
+            try (PreparedStatement del = db.prepareStatement("DELETE FROM conversations WHERE user_id=?");
+                    PreparedStatement ins = db.prepareStatement(
+                            "INSERT INTO conversations(user_id, conv_id, position, title) VALUES(?,?,?,?)")) {
+                del.setInt(1, userId);
+                del.executeUpdate();
+                for (int i = 0; i < copy.size(); i++) {
+                    Conv c = copy.get(i);
+                    ins.setInt(1, userId);
+                    ins.setInt(2, c.id());
+                    ins.setInt(3, i);
+                    ins.setBytes(4, encrypt(c.title(), "conv", userId, c.id()));
+                    ins.addBatch();
+                }
+                ins.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Stores messages of convId as the server sent them. Only pass runs with nothing
+     * missing in between (a history page, a fetch, the pushes of a subscribed conversation),
+     * since readers take the cached messages as complete from the oldest one on.
+     */
+    public void putMessages(int convId, List<Message> msgs) {
+        if (msgs.isEmpty())
+            return;
+        List<Message> copy = List.copyOf(msgs);
+        write(() -> {
+            try (PreparedStatement ins = db.prepareStatement(
+                    "INSERT OR REPLACE INTO messages(conv_id, id, sender, content, created_at) VALUES(?,?,?,?,?)");
+                    PreparedStatement trim = db.prepareStatement(
+                            "DELETE FROM messages WHERE conv_id=? AND id < (SELECT id FROM messages WHERE conv_id=? "
+                                    + "ORDER BY id DESC LIMIT 1 OFFSET ?)")) {
+                for (Message m : copy) {
+                    ins.setInt(1, convId);
+                    ins.setInt(2, m.id());
+                    ins.setInt(3, m.sender());
+                    ins.setBytes(4, encrypt(m.text(), "msg", convId, m.id()));
+                    ins.setString(5, m.createdAt());
+                    ins.addBatch();
+                }
+                ins.executeBatch();
+                trim.setInt(1, convId);
+                trim.setInt(2, convId);
+                trim.setInt(3, KEEP - 1);
+                trim.executeUpdate();
+            }
+        });
+    }
+
+    public void putMessage(int convId, Message m) {
+        putMessages(convId, List.of(m));
+    }
+
+    // ---- worker
+
+    private interface Work<T> {
+        T run() throws Exception;
+    }
+
+    private interface Update {
+        void run() throws Exception;
+    }
+
+    private <T> T read(T fallback, Work<T> work) {
+        try {
+            return worker.submit(() -> {
+                drain();
+                return open() ? work.run() : fallback;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return fallback;
+        }
+    }
+
+    private void write(Update u) {
+        writes.add(() -> {
+            try {
+                u.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        if (drainScheduled.compareAndSet(false, true))
+            worker.execute(this::drain);
+    }
+
+    /** Everything queued so far in one transaction. */
+    private void drain() {
+        drainScheduled.set(false);
+        if (writes.isEmpty())
+            return;
+        if (!open()) {
+            writes.clear();
+            return;
+        }
+        try {
+            db.setAutoCommit(false);
+            Runnable w;
+            while ((w = writes.poll()) != null)
+                w.run();
+            db.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            try {
+                db.rollback();
+            } catch (SQLException ignored) {
+            }
+        } finally {
+            try {
+                db.setAutoCommit(true);
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    private boolean open() {
+        if (openTried)
+            return db != null;
+        openTried = true;
+        try {
+            Files.createDirectories(dir);
+            key = loadKey(dir.resolve("chatcache.key"));
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            Connection c = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("chatcache.db"));
+            try (Statement st = c.createStatement()) {
+                st.execute("PRAGMA journal_mode=WAL");
+                st.execute("PRAGMA synchronous=NORMAL");
+                st.execute("CREATE TABLE IF NOT EXISTS conversations("
+                        + "user_id INTEGER NOT NULL, conv_id INTEGER NOT NULL, position INTEGER NOT NULL, "
+                        + "title BLOB NOT NULL, PRIMARY KEY(user_id, conv_id))");
+                st.execute("CREATE TABLE IF NOT EXISTS messages("
+                        + "conv_id INTEGER NOT NULL, id INTEGER NOT NULL, sender INTEGER NOT NULL, "
+                        + "content BLOB NOT NULL, created_at TEXT, PRIMARY KEY(conv_id, id)) WITHOUT ROWID");
+            }
+            db = c;
+        } catch (IOException | SQLException | GeneralSecurityException e) {
+            System.err.println("chat cache disabled: " + e);
+        }
+        return db != null;
+    }
+
+    private SecretKey loadKey(Path f) throws IOException, GeneralSecurityException {
+        if (Files.exists(f)) {
+            byte[] raw = Files.readAllBytes(f);
+            if (raw.length == 32)
+                return new SecretKeySpec(raw, "AES");
+        }
+        // a new key: whatever was cached under the old one no longer decrypts and is dropped
+        KeyGenerator gen = KeyGenerator.getInstance("AES");
+        gen.init(256, random);
+        SecretKey k = gen.generateKey();
+        Path tmp = Files.createTempFile(dir, "chatcache", ".key");
+        try {
+            Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException ignored) {
+        }
+        Files.write(tmp, k.getEncoded());
+        Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("chatcache.db"));
+                Statement st = c.createStatement()) {
+            st.execute("DROP TABLE IF EXISTS conversations");
+            st.execute("DROP TABLE IF EXISTS messages");
+        } catch (SQLException ignored) {
+        }
+        return k;
+    }
+
+    /** nonce | ciphertext+tag; the row's identity is authenticated too, so rows cannot be swapped. */
+    private byte[] encrypt(String text, String kind, int a, int b) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE];
+        random.nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        cipher.updateAAD(aad(kind, a, b));
+        byte[] sealed = cipher.doFinal((text == null ? "" : text).getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.allocate(NONCE + sealed.length).put(nonce).put(sealed).array();
+    }
+
+    private String decrypt(byte[] blob, String kind, int a, int b) {
+        if (blob == null || blob.length < NONCE + TAG_BITS / 8)
+            return null;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, blob, 0, NONCE));
+            cipher.updateAAD(aad(kind, a, b));
+            return new String(cipher.doFinal(blob, NONCE, blob.length - NONCE), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+    }
+
+    private static byte[] aad(String kind, int a, int b) {
+        return (kind + "|" + a + "|" + b).getBytes(StandardCharsets.UTF_8);
+    }
+}
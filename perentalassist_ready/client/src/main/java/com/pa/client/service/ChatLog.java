@@ -0,0 +1,348 @@
+package com.pa.client.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only local log of the chat messages this client has seen, kept under
+ * ~/.perentalassist/chatlogs. The chat screen opens from {@link ChatCache}; {@link #recent}
+ * stands in for it when the cache cannot be opened, so a conversation can still be shown
+ * from disk before the server answers. {@link #append} only queues; one background thread
+ * does all file work.
+ *
+ * Every pa.client.chatlog.flushMs (250) the queued entries are batched per conversation
+ * into a buffer and written to that conversation's FileChannel, which stays open (at most
+ * pa.client.chatlog.open of them, least recently used closed first). conv_&lt;id&gt;.txt is the
+ * segment being written; once past pa.client.chatlog.segmentBytes (1 MiB) it is renamed
+ * conv_&lt;id&gt;.&lt;n&gt;.txt and a new one started. The newest pa.client.chatlog.segments (4)
+ * segments of a conversation are kept, the rest deleted.
+ *
+ * A line is createdAt TAB #id TAB from:sender TAB text, with backslash, tab and line
+ * breaks in the text escaped. The same id may be logged more than once;
+ * {@link #recent} keeps one.
+ */
+public class ChatLog {
+    private static final long FLUSH_MS = Math.max(1, Long.getLong("pa.client.chatlog.flushMs", 250));
+    private static final long SEGMENT_BYTES = Math.max(4096, Long.getLong("pa.client.chatlog.segmentBytes", 1 << 20));
+    private static final int SEGMENTS = Math.max(1, Integer.getInteger("pa.client.chatlog.segments", 4));
+    private static final int MAX_OPEN = Math.max(1, Integer.getInteger("pa.client.chatlog.open", 16));
+    private static final int BUFFER = 64 * 1024;
+
+    private static final ChatLog INSTANCE = new ChatLog(Path.of(System.getProperty("user.home"), ".perentalassist", "chatlogs"));
+    public static ChatLog get() { return INSTANCE; }
+
+    public static record Entry(int id, int sender, String text, String createdAt) {}
+
+    private record Pending(int convId, Entry entry) {}
+
+    private final Path dir;
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pa-chatlog");
+        t.setDaemon(true);
+        return t;
+    });
+    // writer thread only: open segments, least recently used first
+    private final LinkedHashMap<Integer, Segment> open = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean dirCreated;
+
+    private ChatLog(Path dir) {
+        this.dir = dir;
+        writer.scheduleWithFixedDelay(this::flushAll, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writer.submit(this::closeAll).get(2, TimeUnit.SECONDS);
+            } catch (Exception ignored) {
+            }
+        }, "pa-chatlog-close"));
+    }
+
+    /** Queues one message for the log of convId; never blocks on the disk. */
+    public void append(int convId, int id, int sender, String text, String createdAt) {
+        pending.add(new Pending(convId, new Entry(id, sender, text, createdAt == null ? "" : createdAt)));
+    }
+
+    /**
+     * The last limit messages logged for convId, lowest id first, including any still
+     * queued. Waits for the log thread and reads the disk, so not for the FX thread.
+     */
+    public List<Entry> recent(int convId, int limit) {
+        try {
+            return writer.submit(() -> {
+                flushAll();
+                return read(convId, limit);
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return List.of();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            return List.of();
+        }
+    }
+
+    // ---- log thread
+
+    private void flushAll() {
+        Pending p;
+        while ((p = pending.poll()) != null) {
+            try {
+                segment(p.convId()).add(encode(p.entry()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                discard(p.convId());
+            }
+        }
+        for (Integer convId : new ArrayList<>(open.keySet())) {
+            try {
+                open.get(convId).flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                discard(convId);
+            }
+        }
+    }
+
+    private void closeAll() {
+        flushAll();
+        for (Integer convId : new ArrayList<>(open.keySet()))
+            discard(convId);
+    }
+
+    private Segment segment(int convId) throws IOException {
+        Segment s = open.get(convId);
+        if (s != null)
+            return s;
+        if (open.size() >= MAX_OPEN)
+            discard(open.keySet().iterator().next());
+        if (!dirCreated) {
+            Files.createDirectories(dir);
+            dirCreated = true;
+        }
+        s = new Segment(convId);
+        open.put(convId, s);
+        return s;
+    }
+
+    private void discard(int convId) {
+        Segment s = open.remove(convId);
+        if (s == null)
+            return;
+        try {
+            s.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path current(int convId) {
+        return dir.resolve("conv_" + convId + ".txt");
+    }
+
+    /** The rotated segments of convId, oldest first. */
+    private List<Path> rotated(int convId) throws IOException {
+        List<Path> out = new ArrayList<>();
+        if (!Files.isDirectory(dir))
+            return out;
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "conv_" + convId + ".*.txt")) {
+            for (Path p : ds) {
+                if (segmentNumber(p) > 0)
+                    out.add(p);
+            }
+        }
+        out.sort(Comparator.comparingInt(ChatLog::segmentNumber));
+        return out;
+    }
+
+    private static int segmentNumber(Path p) {
+        String name = p.getFileName().toString();
+        int dot = name.indexOf('.');
+        try {
+            return Integer.parseInt(name.substring(dot + 1, name.length() - ".txt".length()));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private List<Entry> read(int convId, int limit) throws IOException {
+        List<Path> files = rotated(convId);
+        files.add(current(convId));
+        Map<Integer, Entry> byId = new HashMap<>();
+        for (int f = files.size() - 1; f >= 0 && byId.size() < limit; f--) {
+            linesBackwards(files.get(f), line -> {
+                Entry e = decode(line);
+                if (e != null)
+                    byId.putIfAbsent(e.id(), e);     // the newest copy of an id wins
+                return byId.size() < limit;
+            });
+        }
+        List<Entry> out = new ArrayList<>(byId.values());
+        out.sort(Comparator.comparingInt(Entry::id));
+        return out;
+    }
+
+    /**
+     * Hands the lines of f to sink, last first, until it returns false; reads from the end
+     * a buffer at a time, so the latest lines of a big file cost what a small one does.
+     */
+    private static void linesBackwards(Path f, Predicate<String> sink) throws IOException {
+        if (!Files.exists(f))
+            return;
+        try (FileChannel ch = FileChannel.open(f, READ)) {
+            byte[] carry = new byte[0];     // the start of a line whose beginning is further back
+            for (long end = ch.size(); end > 0;) {
+                long start = Math.max(0, end - BUFFER);
+                int n = (int) (end - start);
+                byte[] b = new byte[n + carry.length];
+                ByteBuffer bb = ByteBuffer.wrap(b, 0, n);
+                while (bb.hasRemaining() && ch.read(bb, start + bb.position()) > 0) {
+                }
+                System.arraycopy(carry, 0, b, n, carry.length);
+                int first = -1;             // before the first newline: not a whole line unless at 0
+                if (start > 0) {
+                    while (++first < b.length && b[first] != '\n') {
+                    }
+                    if (first == b.length) {
+                        carry = b;
+                        end = start;
+                        continue;
+                    }
+                }
+                int to = b.length;
+                for (int i = b.length - 1; i >= first; i--) {
+                    if (i == first || b[i] == '\n') {
+                        if (i + 1 < to && !sink.test(new String(b, i + 1, to - i - 1, StandardCharsets.UTF_8)))
+                            return;
+                        to = i;
+                    }
+                }
+                carry = first < 0 ? new byte[0] : Arrays.copyOf(b, first);
+                end = start;
+            }
+        }
+    }
+
+    private static byte[] encode(Entry e) {
+        String line = e.createdAt() + "\t#" + e.id() + "\tfrom:" + e.sender() + "\t" + escape(e.text()) + "\n";
+        return line.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static Entry decode(String line) {
+        String[] p = line.split("\t", 4);
+        if (p.length < 4 || !p[1].startsWith("#") || !p[2].startsWith("from:"))
+            return null;
+        try {
+            return new Entry(Integer.parseInt(p[1].substring(1)), Integer.parseInt(p[2].substring(5)),
+                    unescape(p[3]), p[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String s) {
+        if (s == null)
+            return "";
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\' -> sb.append("\\\\");
+                case '\t' -> sb.append("\\t");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                default -> sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0)
+            return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                sb.append(c);
+                continue;
+            }
+            char n = s.charAt(++i);
+            sb.append(switch (n) {
+                case 't' -> '\t';
+                case 'n' -> '\n';
+                case 'r' -> '\r';
+                default -> n;
+            });
+        }
+        return sb.toString();
+    }
+
+    /** The file a conversation is appended to, and the bytes not yet written to it. */
+    private final class Segment {
+        private final int convId;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+        private FileChannel ch;
+        private long size;
+
+        Segment(int convId) throws IOException {
+            this.convId = convId;
+            openFile();
+        }
+
+        private void openFile() throws IOException {
+            ch = FileChannel.open(current(convId), CREATE, WRITE, APPEND);
+            size = ch.size();
+        }
+
+        void add(byte[] line) throws IOException {
+            if (line.length > buf.remaining())
+                flush();
+            if (line.length > buf.capacity())
+                write(ByteBuffer.wrap(line));
+            else
+                buf.put(line);
+        }
+
+        void flush() throws IOException {
+            if (buf.position() == 0)
+                return;
+            buf.flip();
+            write(buf);
+            buf.clear();
+        }
+
+        private void write(ByteBuffer b) throws IOException {
+            while (b.hasRemaining())
+                size += ch.write(b);
+            if (size >= SEGMENT_BYTES)
+                rotate();
+        }
+
+        private void rotate() throws IOException {
+            ch.close();
+            List<Path> old = rotated(convId);
+            int n = old.isEmpty() ? 1 : segmentNumber(old.get(old.size() - 1)) + 1;
+            Path moved = dir.resolve("conv_" + convId + "." + n + ".txt");
+            Files.move(current(convId), moved);
+            old.add(moved);
+            while (old.size() > SEGMENTS - 1)
+                Files.deleteIfExists(old.remove(0));
+            openFile();
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                ch.close();
+            }
+        }
+    }
+}
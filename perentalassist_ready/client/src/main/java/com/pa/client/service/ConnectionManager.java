@@ -0,0 +1,155 @@
+package com.pa.client.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A few persistent {@link ServerConnection}s per server, opened on first use and reopened
+ * after a failure. Requests are spread round-robin over them; connection 0 also carries
+ * the pushes and subscriptions of {@link RealtimeClient}.
+ *
+ * Once the push connection has been asked for, losing it starts reconnect attempts with
+ * exponential backoff (0.5s doubling to 30s, jittered) until one succeeds or
+ * {@link #closePush} is called; the reconnect listener then has to subscribe again, the
+ * new connection starts with none.
+ *
+ * Size with -Dpa.client.connections (default 2); -Dpa.client.timeoutMs bounds a call
+ * (default 30000).
+ */
+public final class ConnectionManager {
+    private static final ConcurrentMap<String, ConnectionManager> BY_SERVER = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final int port;
+    private final ServerConnection[] conns;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long timeoutMs = Long.getLong("pa.client.timeoutMs", 30_000);
+    private volatile Consumer<String[]> pushListener = fields -> { };
+    private volatile Runnable reconnectListener = () -> { };
+    private volatile boolean pushWanted;
+    // guarded by this: slot 0 could not be opened while pushes were wanted, so whatever was
+    // sent on it is lost and the next open is a replacement; one reconnect attempt at a time
+    private boolean pushLost;
+    private boolean reconnectScheduled;
+    private int reconnectAttempt;
+
+    private static final long BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final ScheduledExecutorService RECONNECTS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pa-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ConnectionManager(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.conns = new ServerConnection[Math.max(1, Integer.getInteger("pa.client.connections", 2))];
+    }
+
+    public static ConnectionManager get(String host, int port) {
+        return BY_SERVER.computeIfAbsent(host + ":" + port, k -> new ConnectionManager(host, port));
+    }
+
+    /** Sends one command and waits for its response lines. */
+    public List<String> send(String command) throws IOException {
+        int i = Math.floorMod(next.getAndIncrement(), conns.length);
+        return connection(i).call(command, timeoutMs);
+    }
+
+    /** Sends one command given as fields and waits for the fields of its response lines. */
+    public List<String[]> call(String... fields) throws IOException {
+        int i = Math.floorMod(next.getAndIncrement(), conns.length);
+        return connection(i).callFields(timeoutMs, fields);
+    }
+
+    /** The connection that carries pushes; subscriptions must be sent on it. */
+    public ServerConnection pushConnection() throws IOException {
+        pushWanted = true;
+        return connection(0);
+    }
+
+    /** Closes the push connection without reconnecting; the next {@link #pushConnection} opens it again. */
+    public void closePush() {
+        pushWanted = false;
+        ServerConnection c = conns[0];
+        if (c != null)
+            c.close();
+    }
+
+    public boolean isPushConnected() {
+        ServerConnection c = conns[0];
+        return c != null && c.isOpen();
+    }
+
+    public void setPushListener(Consumer<String[]> l) {
+        pushListener = l;
+        ServerConnection c = conns[0];
+        if (c != null)
+            c.setPushListener(l);
+    }
+
+    /** Runs (on a background thread) each time a lost push connection has been replaced. */
+    public void setReconnectListener(Runnable l) {
+        reconnectListener = l;
+    }
+
+    private synchronized ServerConnection connection(int i) throws IOException {
+        ServerConnection c = conns[i];
+        if (c == null || !c.isOpen()) {
+            boolean replacing = c != null || (i == 0 && pushLost);
+            try {
+                c = new ServerConnection(host, port);
+            } catch (IOException e) {
+                if (i == 0 && pushWanted) {
+                    pushLost = true;
+                    scheduleReconnect();
+                }
+                throw e;
+            }
+            if (i == 0) {
+                pushLost = false;
+                reconnectAttempt = 0;
+                c.setPushListener(pushListener);
+                c.setCloseListener(() -> {
+                    if (pushWanted)
+                        scheduleReconnect();
+                });
+                // not run here: the listener subscribes through callers that lock in the other order
+                if (replacing)
+                    RECONNECTS.execute(() -> reconnectListener.run());
+            }
+            conns[i] = c;
+        }
+        return c;
+    }
+
+    /** The next reconnect attempt of the push connection, unless one is already waiting; a failed one schedules another. */
+    private synchronized void scheduleReconnect() {
+        if (reconnectScheduled)
+            return;
+        reconnectScheduled = true;
+        long max = Math.min(MAX_BACKOFF_MS, BACKOFF_MS << Math.min(reconnectAttempt++, 10));
+        long delay = max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+        RECONNECTS.schedule(() -> {
+            synchronized (this) {
+                reconnectScheduled = false;
+            }
+            if (!pushWanted || isPushConnected())
+                return;     // closed on purpose, or a request has reopened it meanwhile
+            try {
+                connection(0);
+            } catch (IOException ignored) {
+                // connection() has scheduled the next attempt
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
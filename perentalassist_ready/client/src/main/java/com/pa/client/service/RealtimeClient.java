@@ -1,62 +1,74 @@
 package com.pa.client.service;
 
-import java.io.*;
-import java.net.Socket;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.Consumer;
 
-/** One persistent TCP connection; reads server-pushed lines on a thread. */
+/**
+ * Chat pushes and subscriptions over the push connection of {@link ConnectionManager},
+ * the same socket tagged requests use. Lines other than MSG go to {@link PushBus}.
+ *
+ * RESYNC means the server skipped pushes because this client fell behind; resync
+ * listeners should refetch what they show.
+ *
+ * The connection is re-established by {@link ConnectionManager} when it drops; this class
+ * then authenticates again and resubscribes each conversation as CHAT_SUB|convId|lastSeenId,
+ * so the server replays what was missed as ordinary MSG pushes. A conversation with no
+ * known last id is resubscribed plainly and the resync listeners are run instead.
+ */
 public class RealtimeClient {
     private static final RealtimeClient INSTANCE = new RealtimeClient();
     public static RealtimeClient get() { return INSTANCE; }
 
-    private Socket socket;
-    private PrintWriter out;
-    private Thread readerThread;
-    private volatile boolean running = false;
+    private volatile ConnectionManager manager;
     private volatile Integer authedUserId = null;
 
     // convId -> listeners
     private final ConcurrentMap<Integer, CopyOnWriteArrayList<Consumer<Msg>>> listeners = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Runnable> resyncListeners = new CopyOnWriteArrayList<>();
+    // conversations subscribed on the server, and the highest message id seen in each
+    private final Set<Integer> subscribed = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Integer, Integer> lastSeen = new ConcurrentHashMap<>();
 
     public static record Msg(int convId, int id, int sender, String text, String createdAt) {}
 
     public synchronized void ensureConnected(String host, int port) throws IOException {
-        if (running) return;
-        socket = new Socket(host, port);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        running = true;
-        readerThread = new Thread(this::readLoop, "RealtimeClient-Reader");
-        readerThread.setDaemon(true);
-        readerThread.start();
+        if (manager == null) {
+            manager = ConnectionManager.get(host, port);
+            manager.setPushListener(this::onPush);
+            manager.setReconnectListener(this::onReconnect);
+        }
+        manager.pushConnection();
+    }
+
+    public boolean isConnected() {
+        var m = manager;
+        return m != null && m.isPushConnected();
     }
 
     public synchronized void close() {
-        running = false;
-        try { if (socket != null) socket.close(); } catch (IOException ignored) {}
+        var m = manager;
+        if (m == null) return;
+        m.closePush();
     }
 
-    private void readLoop() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String line;
-            while (running && (line = in.readLine()) != null) {
-                if (line.startsWith("MSG|")) {
-                    // MSG|convId|id|sender|content|created_at
-                    String[] p = line.split("\\|", -1);
-                    if (p.length >= 6) {
-                        int convId = Integer.parseInt(p[1]);
-                        int id = Integer.parseInt(p[2]);
-                        int sender = Integer.parseInt(p[3]);
-                        String text = p[4];
-                        String created = p[5];
-                        dispatch(convId, new Msg(convId, id, sender, text, created));
-                    }
-                }
-                // ignore other lines; controller can still call one-shot ApiService if needed
+    private void onPush(String[] p) {
+        if (p[0].equals("MSG")) {
+            // MSG|convId|id|sender|content|created_at
+            if (p.length >= 6) {
+                int convId = Integer.parseInt(p[1]);
+                int id = Integer.parseInt(p[2]);
+                int sender = Integer.parseInt(p[3]);
+                String text = p[4];
+                String created = p[5];
+                markSeen(convId, id);
+                dispatch(convId, new Msg(convId, id, sender, text, created));
             }
-        } catch (IOException ignored) {
-            running = false;
+        } else {
+            if (p[0].equals("RESYNC"))
+                resyncListeners.forEach(Runnable::run);
+            PushBus.get().dispatch(p);   // comment/feed pushes; acks are ignored there
         }
     }
 
@@ -74,8 +86,13 @@ public class RealtimeClient {
         if (list != null) list.remove(l);
     }
 
+    public void addResyncListener(Runnable l) { resyncListeners.add(l); }
+    public void removeResyncListener(Runnable l) { resyncListeners.remove(l); }
+
     public synchronized void send(String raw) {
-        if (out != null) out.println(raw);
+        var m = manager;
+        if (m == null) return;
+        try { m.pushConnection().sendUntagged(raw); } catch (IOException e) { e.printStackTrace(); }
     }
 
     public void authIfNeeded(int userId) {
@@ -84,6 +101,36 @@ public class RealtimeClient {
         authedUserId = userId;
     }
 
-    public void subscribe(int convId) { send("CHAT_SUB|" + convId); }
-    public void unsubscribe(int convId) { send("CHAT_UNSUB|" + convId); }
+    public void subscribe(int convId) {
+        subscribed.add(convId);
+        send("CHAT_SUB|" + convId);
+    }
+    public void unsubscribe(int convId) {
+        subscribed.remove(convId);
+        lastSeen.remove(convId);
+        send("CHAT_UNSUB|" + convId);
+    }
+
+    /** Records that messages up to id of convId are shown (e.g. after a CHAT_FETCH); pushes are tracked already. */
+    public void markSeen(int convId, int id) {
+        if (id > 0)
+            lastSeen.merge(convId, id, Math::max);
+    }
+
+    private void onReconnect() {
+        Integer uid = authedUserId;
+        if (uid != null) send("AUTH|" + uid);
+        boolean refetch = false;
+        for (int convId : subscribed) {
+            Integer last = lastSeen.get(convId);
+            if (last != null) {
+                send("CHAT_SUB|" + convId + "|" + last);
+            } else {
+                send("CHAT_SUB|" + convId);
+                refetch = true;
+            }
+        }
+        PushBus.get().resubscribe();
+        if (refetch) resyncListeners.forEach(Runnable::run);
+    }
 }
@@ -0,0 +1,214 @@
+package com.pa.client.service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * One long-lived socket to the server shared by many requests. Each request goes out as
+ * #rid|COMMAND; the server tags every line of its response with the same #rid| and closes
+ * it with #rid|. so requests can be pipelined and answered in any order. Untagged lines
+ * are pushes (MSG, COMMENT_NEW, POST_NEW, acks of untagged subscriptions) and go to the
+ * push listener.
+ *
+ * Right after WELCOME the connection asks for binary frames (see {@link Wire}), where
+ * fields need no escaping; a server that does not answer PROTO_OK|BIN is talked to in
+ * text. -Dpa.client.wire=text skips the upgrade.
+ *
+ * A broken socket fails the requests waiting on it; {@link ConnectionManager} replaces it.
+ */
+public final class ServerConnection {
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final String END_OF_RESPONSE = ".";
+    private static final boolean ASK_BINARY = !"text".equalsIgnoreCase(System.getProperty("pa.client.wire", "binary"));
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final boolean binary;
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private volatile Consumer<String[]> pushListener = fields -> { };
+    private volatile Runnable closeListener = () -> { };
+    private final AtomicBoolean open = new AtomicBoolean(true);
+
+    /** Fields of the lines received so far for one request. */
+    private static final class Pending {
+        final List<String[]> rows = new ArrayList<>();
+        final CompletableFuture<List<String[]>> done = new CompletableFuture<>();
+    }
+
+    ServerConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+        Wire.readLine(in); // "WELCOME"
+        boolean upgraded = false;
+        if (ASK_BINARY) {
+            out.write((Wire.UPGRADE + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            upgraded = Wire.UPGRADE_OK.equals(Wire.readLine(in));   // older servers answer ERR|UNKNOWN|PROTO
+        }
+        binary = upgraded;
+        Thread reader = new Thread(() -> readLoop(in), "ServerConnection-Reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    public boolean isOpen() {
+        return open.get();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setPushListener(Consumer<String[]> l) {
+        pushListener = l;
+    }
+
+    /** Runs once when the connection closes, whether broken or closed on purpose. */
+    public void setCloseListener(Runnable l) {
+        closeListener = l;
+    }
+
+    /**
+     * Sends a tagged request given as one '|'-separated line; the future completes with its
+     * response lines (tags removed). Fields holding '|' or line breaks come back blanked.
+     */
+    public CompletableFuture<List<String>> request(String command) {
+        return send(Wire.split(command)).thenApply(rows -> {
+            List<String> lines = new ArrayList<>(rows.size());
+            for (String[] r : rows)
+                lines.add(Wire.join(r));
+            return lines;
+        });
+    }
+
+    /** Sends a tagged request given as fields; the future completes with the fields of each response line. */
+    public CompletableFuture<List<String[]>> requestFields(String... fields) {
+        return send(fields);
+    }
+
+    /** {@link #request} and wait for the response. */
+    public List<String> call(String command, long timeoutMs) throws IOException {
+        return await(request(command), command, timeoutMs);
+    }
+
+    /** {@link #requestFields} and wait for the response. */
+    public List<String[]> callFields(long timeoutMs, String... fields) throws IOException {
+        return await(requestFields(fields), fields.length > 0 ? fields[0] : "", timeoutMs);
+    }
+
+    private static <T> T await(CompletableFuture<T> f, String what, long timeoutMs) throws IOException {
+        try {
+            return f.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("no response to " + what + " after " + timeoutMs + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+
+    private CompletableFuture<List<String[]>> send(String[] fields) {
+        String tag = Long.toString(NEXT_ID.incrementAndGet(), 36);
+        Pending p = new Pending();
+        pending.put(tag, p);
+        try {
+            write(tag, fields);
+        } catch (IOException e) {
+            pending.remove(tag);
+            p.done.completeExceptionally(e);
+        }
+        return p.done;
+    }
+
+    /** Sends a line without a tag; whatever it answers arrives as a push. */
+    public void sendUntagged(String line) throws IOException {
+        write("", Wire.split(line));
+    }
+
+    private void write(String tag, String[] fields) throws IOException {
+        if (!open.get())
+            throw new IOException("connection closed");
+        byte[] data = binary ? Wire.frame(tag, fields)
+                : ((tag.isEmpty() ? "" : "#" + tag + "|") + Wire.join(fields) + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            out.write(data);
+            out.flush();
+        }
+    }
+
+    private void readLoop(InputStream in) {
+        try {
+            while (true) {
+                String tag;
+                String[] fields;
+                if (binary) {
+                    String[] f = Wire.readFrame(in);
+                    if (f == null)
+                        break;
+                    tag = f[0];
+                    fields = Arrays.copyOfRange(f, 1, f.length);
+                } else {
+                    String line = Wire.readLine(in);
+                    if (line == null)
+                        break;
+                    int bar = line.indexOf('|');
+                    boolean tagged = line.startsWith("#") && bar > 1;
+                    tag = tagged ? line.substring(1, bar) : "";
+                    fields = Wire.split(tagged ? line.substring(bar + 1) : line);
+                }
+                if (tag.isEmpty()) {
+                    pushListener.accept(fields);
+                } else {
+                    Pending p = pending.get(tag);
+                    if (p != null)
+                        accept(tag, p, fields);
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    private void accept(String tag, Pending p, String[] fields) {
+        if (fields.length == 1 && END_OF_RESPONSE.equals(fields[0])) {
+            pending.remove(tag);
+            p.done.complete(p.rows);
+        } else {
+            p.rows.add(fields);
+        }
+    }
+
+    public void close() {
+        if (!open.compareAndSet(true, false))
+            return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        IOException gone = new IOException("connection closed");
+        pending.values().forEach(p -> p.done.completeExceptionally(gone));
+        pending.clear();
+        closeListener.run();
+    }
+}
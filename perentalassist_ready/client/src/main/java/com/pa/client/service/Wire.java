@@ -0,0 +1,154 @@
+package com.pa.client.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client side of the two message encodings (mirrors the server's Wire).
+ *
+ * Text: one '|'-separated line per message, #tag| in front of tagged ones; a field cannot
+ * hold '|' or a line break. Binary, after PROTO|BIN / PROTO_OK|BIN: frames of
+ *
+ *   u32 length of the rest | varint field count | per field: varint byte length, UTF-8 bytes
+ *
+ * with the tag as field 0 ("" = untagged), so any text goes through as is.
+ */
+final class Wire {
+    static final String UPGRADE = "PROTO|BIN";
+    static final String UPGRADE_OK = "PROTO_OK|BIN";
+
+    private static final int MAX_FRAME = 1 << 20;
+
+    private Wire() {}
+
+    /** Fields joined by '|', each with '|' and line breaks blanked out. */
+    static String join(String[] fields) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append('|');
+            String f = fields[i] == null ? "" : fields[i];
+            for (int j = 0; j < f.length(); j++) {
+                char ch = f.charAt(j);
+                sb.append(ch == '|' || ch == '\n' || ch == '\r' ? ' ' : ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** A text line's fields; split on '|' literally, empty fields kept. */
+    static String[] split(String line) {
+        List<String> out = new ArrayList<>(8);
+        int from = 0;
+        int bar;
+        while ((bar = line.indexOf('|', from)) >= 0) {
+            out.add(line.substring(from, bar));
+            from = bar + 1;
+        }
+        out.add(line.substring(from));
+        return out.toArray(new String[0]);
+    }
+
+    /** One '\n'-terminated line without its terminator, or null at end of stream. */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (buf.size() == 0)
+                    return null;
+                break;
+            }
+            if (buf.size() == MAX_FRAME)
+                throw new IOException("line too long");
+            buf.write(b);
+        }
+        byte[] bytes = buf.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r')
+            len--;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    /** A complete frame: tag, then fields. */
+    static byte[] frame(String tag, String[] fields) {
+        byte[][] encoded = new byte[fields.length + 1][];
+        encoded[0] = tag.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < fields.length; i++)
+            encoded[i + 1] = (fields[i] == null ? "" : fields[i]).getBytes(StandardCharsets.UTF_8);
+        int body = varintSize(encoded.length);
+        for (byte[] f : encoded)
+            body += varintSize(f.length) + f.length;
+        ByteBuffer out = ByteBuffer.allocate(4 + body);
+        out.putInt(body);
+        putVarint(out, encoded.length);
+        for (byte[] f : encoded) {
+            putVarint(out, f.length);
+            out.put(f);
+        }
+        return out.array();
+    }
+
+    /** Reads one frame (tag first), or null at a clean end of stream. */
+    static String[] readFrame(InputStream in) throws IOException {
+        byte[] head = in.readNBytes(4);
+        if (head.length == 0)
+            return null;
+        if (head.length < 4)
+            throw new IOException("truncated frame");
+        int len = ByteBuffer.wrap(head).getInt();
+        if (len < 1 || len > MAX_FRAME)
+            throw new IOException("bad frame length " + len);
+        byte[] body = in.readNBytes(len);
+        if (body.length < len)
+            throw new IOException("truncated frame");
+        try {
+            ByteBuffer b = ByteBuffer.wrap(body);
+            int n = getVarint(b);
+            if (n < 1 || n > len)
+                throw new IOException("bad field count " + n);
+            String[] out = new String[n];
+            for (int i = 0; i < n; i++) {
+                int flen = getVarint(b);
+                if (flen > b.remaining())
+                    throw new IOException("field overruns frame");
+                out[i] = new String(body, b.position(), flen, StandardCharsets.UTF_8);
+                b.position(b.position() + flen);
+            }
+            return out;
+        } catch (RuntimeException e) {
+            throw new IOException("malformed frame", e);
+        }
+    }
+
+    private static int varintSize(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static int getVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("varint too long");
+    }
+}
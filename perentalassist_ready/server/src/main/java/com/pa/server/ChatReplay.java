@@ -0,0 +1,178 @@
+package com.pa.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latest MSG events of each conversation, so a client coming back with
+ * CHAT_SUB|convId|lastSeenId can be caught up from memory instead of a query.
+ *
+ * Every message stored while the server runs should be broadcast and so recorded here. A
+ * conversation's ring then holds every message above its floor: the highest chat id at
+ * startup ({@link #start}), raised to the highest id the ring had to evict, so a resume
+ * from at or above the floor is answered from memory alone and anything older is a miss
+ * the caller reads from the database. A history page also has to match the lowest id the
+ * database's index gives for it, since a ring may hold fewer than a page above its floor.
+ *
+ * -Dpa.server.replay.size bounds the messages kept per conversation (default 256),
+ * -Dpa.server.replay.conversations the conversations with a ring (default 10000, least
+ * recently used dropped first; those fall back to the database).
+ */
+final class ChatReplay {
+    private static final int CAPACITY = Math.max(1, Integer.getInteger("pa.server.replay.size", 256));
+    private static final LongAdder HITS = Metrics.counter("hub.replay_hits");
+    private static final LongAdder MISSES = Metrics.counter("hub.replay_misses");
+    private static final int CONVERSATIONS = Math.max(1, Integer.getInteger("pa.server.replay.conversations", 10_000));
+
+    // access order: the conversation messaged or resumed longest ago is dropped first
+    private final Map<Integer, Ring> rings = new LinkedHashMap<>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Ring> eldest) {
+            if (size() <= CONVERSATIONS)
+                return false;
+            // a ring made later for that conversation must not claim what this one held
+            evictedFloor = Math.max(evictedFloor, eldest.getValue().newest());
+            return true;
+        }
+    };
+    private volatile int startFloor = Integer.MAX_VALUE;   // until start(): nothing can be answered
+    private int evictedFloor;                               // guarded by rings
+
+    ChatReplay() {
+        Metrics.gauge("hub.replay_conversations", this::conversations);
+    }
+
+    /** maxId: the highest chat message id in the database before any client connected. */
+    void start(int maxId) {
+        startFloor = maxId;
+    }
+
+    void record(int convId, int id, Object[] fields) {
+        Ring r;
+        synchronized (rings) {
+            r = rings.get(convId);
+            if (r == null) {
+                r = new Ring(Math.max(startFloor, evictedFloor));
+                rings.put(convId, r);
+            }
+        }
+        r.add(id, fields);
+    }
+
+    /**
+     * The messages of convId after lastSeenId, lowest id first, or null when they may
+     * include some that are no longer (or never were) in memory.
+     */
+    List<Object[]> since(int convId, int lastSeenId) {
+        Ring r = ring(convId);
+        List<Object[]> out = r != null ? r.since(lastSeenId)
+                : lastSeenId >= Math.max(startFloor, evictedFloor()) ? List.of() : null;
+        (out != null ? HITS : MISSES).increment();
+        return out;
+    }
+
+    /**
+     * The limit newest messages of convId below beforeId (0: the newest overall), lowest id
+     * first; null unless memory holds that many above the floor, as only then are they
+     * certainly the newest. lowest: the id of the limit-th newest of them in the database
+     * (0 if it has fewer); with another lowest id here memory lacks one.
+     */
+    List<Object[]> latest(int convId, int beforeId, int limit, int lowest) {
+        Ring r = ring(convId);
+        List<Object[]> out = r != null && lowest > 0 ? r.latest(beforeId <= 0 ? Integer.MAX_VALUE : beforeId, limit) : null;
+        if (out != null && ((Number) out.get(0)[2]).intValue() != lowest)
+            out = null;     // MSG|convId|id|...
+        (out != null ? HITS : MISSES).increment();
+        return out;
+    }
+
+    private Ring ring(int convId) {
+        synchronized (rings) {
+            return rings.get(convId);
+        }
+    }
+
+    private int evictedFloor() {
+        synchronized (rings) {
+            return evictedFloor;
+        }
+    }
+
+    private int conversations() {
+        synchronized (rings) {
+            return rings.size();
+        }
+    }
+
+    /** Arrival order, oldest overwritten first. Ids mostly arrive ascending, not always (group commit). */
+    private static final class Ring {
+        private int[] ids = new int[Math.min(8, CAPACITY)];
+        private Object[][] rows = new Object[ids.length][];
+        private int next;       // slot for the next message once full
+        private int size;
+        private int floor;
+
+        Ring(int floor) {
+            this.floor = floor;
+        }
+
+        synchronized int newest() {
+            int max = floor;
+            for (int i = 0; i < size; i++)
+                max = Math.max(max, ids[i]);
+            return max;
+        }
+
+        synchronized void add(int id, Object[] fields) {
+            if (size == ids.length && size < CAPACITY) {
+                int grown = Math.min(CAPACITY, size * 2);
+                ids = Arrays.copyOf(ids, grown);
+                rows = Arrays.copyOf(rows, grown);
+                next = size;
+            }
+            if (size == ids.length)
+                floor = Math.max(floor, ids[next]);
+            else
+                size++;
+            ids[next] = id;
+            rows[next] = fields;
+            next = (next + 1) % ids.length;
+        }
+
+        synchronized List<Object[]> since(int lastSeenId) {
+            if (lastSeenId < floor)
+                return null;
+            return rows(slotsBetween(lastSeenId, Integer.MAX_VALUE));
+        }
+
+        synchronized List<Object[]> latest(int beforeId, int limit) {
+            List<Integer> slots = slotsBetween(floor, beforeId);
+            if (slots.size() < limit)
+                return null;
+            return rows(slots.subList(slots.size() - limit, slots.size()));
+        }
+
+        /** Slots with after < id < before, by id. */
+        private List<Integer> slotsBetween(int after, int before) {
+            List<Integer> slots = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (ids[i] > after && ids[i] < before)
+                    slots.add(i);
+            }
+            slots.sort(Comparator.comparingInt(i -> ids[i]));
+            return slots;
+        }
+
+        private List<Object[]> rows(List<Integer> slots) {
+            List<Object[]> out = new ArrayList<>(slots.size());
+            for (int i : slots)
+                out.add(rows[i]);
+            return out;
+        }
+    }
+}
@@ -5,126 +5,557 @@ import java.io.*;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import com.pa.server.dao.Db;
+import com.pa.server.dao.GroupCommitWriter;
 
 public class ClientHandler implements Runnable {
     private final Socket socket;
-    private volatile PrintWriter out;
+    private volatile Transport out;
     private volatile Integer authedUserId = null;
+    private volatile boolean binary;            // after PROTO|BIN; see Wire
+    private volatile boolean resyncPending;     // pushes were coalesced away, see Overflow
+    private volatile boolean gone;              // onClose ran; ClientHub turns away late subscriptions
+    // while a resuming CHAT_SUB writes its replay: pushes wait here so none overtakes it
+    private final Object holdLock = new Object();
+    private volatile List<Push> held;
 
+    /**
+     * Where a handler writes its encoded lines or frames; one per connection. The transport
+     * queues them and sends them from its own writer, so write never waits for the client,
+     * and calls {@link #onDrained} whenever its queue runs empty.
+     */
+    interface Transport {
+        void write(byte[] data);
+
+        /** Messages queued and not yet completely sent. */
+        int queued();
+
+        /** Closes once everything queued has been sent. */
+        void close();
+
+        /** Closes right away, discarding whatever is still queued. */
+        void abort();
+    }
+
+    /** Thread-per-socket mode: {@link #run()} owns the socket for its whole life. */
     public ClientHandler(Socket socket) {
         this.socket = socket;
     }
 
+    /** Transport-driven mode (see {@link NioServer}): requests are fed in through {@link #handle}. */
+    ClientHandler(Transport transport) {
+        this.socket = null;
+        this.out = transport;
+    }
+
+    private static final boolean BINARY_ALLOWED = Boolean.parseBoolean(System.getProperty("pa.server.binary", "true"));
+
+    /**
+     * The command being handled on this thread, the request tag (rid) its response lines
+     * carry, and those lines, collected so the response goes out in one write.
+     */
+    private record Reply(ClientHandler owner, String tag, ByteArrayOutputStream lines) {
+    }
+
+    private static final ThreadLocal<Reply> REPLY = new ThreadLocal<>();
+
+    /** Last line of every tagged response, after the tag: #rid|. (a frame of just "." in binary) */
+    static final String END_OF_RESPONSE = ".";
+
+    private static final LongAdder MESSAGES_OUT = Metrics.counter("net.messages_out");
+    static final LongAdder WRITES = Metrics.counter("net.writes");
+
+    /**
+     * What a push does when its connection already has OUTBOUND_MAX messages queued, that is
+     * when the client reads slower than it is sent to (-Dpa.server.outbound.policy):
+     *
+     *   DROP        the push is discarded
+     *   COALESCE    it and every later push are discarded until the queue has drained, then
+     *               one RESYNC line tells the client to refetch what it shows (the default)
+     *   DISCONNECT  the connection is closed; the client reconnects and reloads
+     *
+     * Responses are always queued; the in-flight limit already bounds them.
+     */
+    enum Overflow { DROP, COALESCE, DISCONNECT }
+
+    private static final int OUTBOUND_MAX = Integer.getInteger("pa.server.outbound.max", 1024);
+    private static final Overflow OVERFLOW =
+            Overflow.valueOf(System.getProperty("pa.server.outbound.policy", "coalesce").toUpperCase(Locale.ROOT));
+    static final String RESYNC = "RESYNC";
+
+    /** Messages queued on all connections; transports count them in and out. */
+    static final LongAdder QUEUED = Metrics.counter("net.outbound.queued");
+    private static final LongAccumulator MAX_DEPTH = new LongAccumulator(Math::max, 0);
+    private static final LongAdder DROPPED = Metrics.counter("net.outbound.dropped");
+    private static final LongAdder RESYNCS = Metrics.counter("net.outbound.resyncs");
+    private static final LongAdder DISCONNECTS = Metrics.counter("net.outbound.disconnects");
+
+    static {
+        Metrics.gauge("net.outbound.max_depth", MAX_DEPTH::get);
+    }
+
+    // thread modes: runs each connection's drainer; blocked socket writes park here, not in callers
+    private static volatile ExecutorService writerPool = Executors.newCachedThreadPool();
+
+    private static final int MAX_IN_FLIGHT = 64;
+    private static volatile KeyedExecutor commandPool;     // null = every command runs inline
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    /** Lets tagged commands of all connections run concurrently on pool. */
+    static void useCommandPool(KeyedExecutor pool) {
+        commandPool = pool;
+    }
+
+    /** Where thread-mode connections drain their outbound queues. */
+    static void useWriterPool(ExecutorService pool) {
+        writerPool = pool;
+    }
+
+    /**
+     * True when the reader must switch to binary frames right after this request; it is
+     * the one {@link #handle} answers with PROTO_OK|BIN.
+     */
+    static boolean isUpgrade(String tag, String[] p) {
+        return BINARY_ALLOWED && tag == null && p.length == 2 && p[0].equals("PROTO") && p[1].equals("BIN");
+    }
+
+    /**
+     * A response line of the current command; tagged with its #rid| if the request had one.
+     * Only for lines without free text: a binary client gets it split on '|'.
+     */
     public void sendLine(String line) {
+        emit(reply(), line, null);
+    }
+
+    /** A response line of the current command given as fields, which may hold any text. */
+    public void sendFields(Object... fields) {
+        emit(reply(), null, fields);
+    }
+
+    /**
+     * Queues a message that is not part of any response (ClientHub deliveries, never
+     * tagged) without waiting for the client; see {@link Overflow} for a full queue.
+     */
+    void push(Push p) {
+        if (held != null) {
+            synchronized (holdLock) {
+                if (held != null) {
+                    held.add(p);
+                    return;
+                }
+            }
+        }
         var o = this.out;
-        if (o != null)
-            synchronized (o) {
-                o.println(line);
+        if (o == null)
+            return;
+        int depth = o.queued();
+        if (resyncPending || depth >= OUTBOUND_MAX) {
+            overflow(o);
+            return;
+        }
+        MAX_DEPTH.accumulate(depth + 1);
+        MESSAGES_OUT.increment();
+        o.write(p.bytes(binary));
+    }
+
+    private void overflow(Transport o) {
+        DROPPED.increment();
+        switch (OVERFLOW) {
+            case DROP -> {
+            }
+            case COALESCE -> resyncPending = true;
+            case DISCONNECT -> {
+                DISCONNECTS.increment();
+                o.abort();
             }
+        }
+    }
+
+    /** Pushes from now on wait for {@link #releasePushes}; set before subscribing. */
+    private void holdPushes() {
+        synchronized (holdLock) {
+            held = new ArrayList<>();
+        }
+    }
+
+    /** Sends the held pushes in order; ones arriving meanwhile wait for the lock, so stay behind. */
+    private void releasePushes() {
+        synchronized (holdLock) {
+            List<Push> waiting = held;
+            held = null;
+            if (waiting != null)
+                waiting.forEach(this::push);
+        }
+    }
+
+    /** Called by the transport each time it has sent everything queued. */
+    void onDrained() {
+        if (resyncPending) {
+            resyncPending = false;
+            RESYNCS.increment();
+            emit(null, RESYNC, null);
+        }
+    }
+
+    /** The response being collected for this connection on this thread, or null. */
+    private Reply reply() {
+        Reply r = REPLY.get();
+        return r != null && r.owner() == this ? r : null;
+    }
+
+    /** Appends to the current response, or writes right away when there is none. */
+    private void emit(Reply r, String line, Object[] fields) {
+        var o = this.out;
+        if (o == null)
+            return;
+        String tag = r == null ? null : r.tag();
+        byte[] data = binary ? Wire.frame(tag, fields != null ? fields : Wire.split(line))
+                : Wire.line(tag, line != null ? line : Wire.join(fields));
+        MESSAGES_OUT.increment();
+        if (r != null)
+            r.lines().writeBytes(data);
+        else
+            o.write(data);
     }
 
     @Override
     public void run() {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter pout = new PrintWriter(socket.getOutputStream(), true)) {
-            this.out = pout;
-            sendLine("WELCOME");
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                if (line.isBlank())
-                    continue;
-                String[] p = line.split("\\|", -1);
-                String cmd = p[0].trim();
-
+        StreamTransport transport = null;
+        try {
+            // not try-with-resources: closing either stream closes the socket under the writer
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            transport = new StreamTransport(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            this.out = transport;
+            onOpen();
+
+            CommandTokenizer tokens = new CommandTokenizer();
+            boolean frames = false;
+            while (true) {
+                if (frames) {
+                    String[] f = Wire.readFrame(in);
+                    if (f == null || !handleFrame(f))
+                        return;
+                } else {
+                    String[] p = tokens.readLine(in);
+                    if (p == null || !handle(tokens.tag(), p))
+                        return;
+                    frames = isUpgrade(tokens.tag(), p);
+                }
+            }
+        } catch (IOException ignored) {
+        } finally {
+            onClose();
+            if (transport != null) {
+                transport.close();
+            } else {
                 try {
-                    switch (cmd) {
-                        case "PING" -> sendLine("PONG");
-
-                        // ===== auth & subs =====
-                        case "AUTH" -> { // AUTH|userId
-                            authedUserId = Integer.parseInt(p[1]);
-                            ClientHub.get().registerUser(authedUserId, this);
-                            sendLine("AUTH_OK|" + authedUserId);
-                        }
-                        case "CHAT_SUB" -> {
-                            ClientHub.get().subscribe(Integer.parseInt(p[1]), this);
-                            sendLine("SUB_OK|" + p[1]);
-                        }
-                        case "CHAT_UNSUB" -> {
-                            ClientHub.get().unsubscribe(Integer.parseInt(p[1]), this);
-                            sendLine("UNSUB_OK|" + p[1]);
-                        }
-                        case "COMMENT_SUB" -> {
-                            ClientHub.get().subscribeComment(Integer.parseInt(p[1]), this);
-                            sendLine("CSUB_OK|" + p[1]);
-                        }
-                        case "COMMENT_UNSUB" -> {
-                            ClientHub.get().unsubscribeComment(Integer.parseInt(p[1]), this);
-                            sendLine("CUNSUB_OK|" + p[1]);
-                        }
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
 
-                        // ===== users =====
-                        case "LOGIN" -> handleLogin(p);
-                        case "SIGNUP" -> handleSignup(p);
-                        case "USER_GET" -> handleUserGet(p); // END
-                        case "USER_PROFILE" -> handleUserProfile(p); // END
-
-                        // ===== posts & comments (images + delete) =====
-                        case "POST_CREATE" -> handlePostCreate(p); // END
-                        case "POST_DELETE" -> handlePostDelete(p); // END
-                        case "COMMENT_CREATE" -> handleCommentCreate(p); // END (+push)
-                        case "COMMENT_DELETE" -> handleCommentDelete(p); // END
-                        case "FEED_HOME" -> handleFeedHome(); // END
-                        case "FEED_BY_USER" -> handleFeedByUser(p); // END
-                        case "COMMENTS_WITH_USERS" -> handleCommentsWithUsers(p);// END
-                        case "FETCH_POSTS" -> handleFetchPosts(); // END (legacy)
-                        case "FETCH_COMMENTS" -> handleFetchComments(p); // END (legacy)
-
-                        // ===== doctors / appts =====
-                        case "DOCTOR_LIST" -> handleDoctorList(); // END
-                        case "DOCTOR_GET" -> handleDoctorGet(p); // END
-                        case "DOCTOR_FIND_BY_USER" -> handleDoctorFindByUser(p); // END
-                        case "APPT_SLOTS" -> handleApptSlots(p); // END
-                        case "APPT_BOOK" -> handleApptBook(p); // END
-
-                        // ===== teachers (Search Private Teacher) =====
-                        case "TEACHER_LIST" -> handleTeacherList(); // END
-                        case "TEACHER_GET" -> handleTeacherGet(p); // END
-                        case "TEACHER_INTEREST" -> handleTeacherInterest(p); // END
-                        case "TEACHER_REGISTER" -> handleTeacherRegister(p); // END
-
-                        // ===== chat =====
-                        case "MY_CONVS" -> handleMyConvs(p); // END
-                        case "USER_SEARCH" -> handleUserSearch(p); // END
-                        case "CHAT_OPEN" -> handleChatOpen(p); // END
-                        case "CHAT_SEND" -> handleChatSendAndBroadcast(p); // END (+push)
-                        case "CHAT_FETCH" -> handleChatFetch(p); // END
-
-                        // ===== health sessions =====
-                        case "SESSIONS_UPCOMING" -> handleSessionsUpcoming(); // END
-                        case "SESSION_GET" -> handleSessionGet(p); // END
-                        case "SESSION_REGISTER" -> handleSessionRegister(p); // END
-
-                        case "QUIT" -> {
-                            return;
-                        }
-                        default -> sendLine("ERR|UNKNOWN|" + cmd);
+    /**
+     * Thread-mode transport: a queue drained by at most one writer pool task at a time,
+     * which writes everything queued and flushes once it runs out, so pushes and responses
+     * arriving together leave in one socket write.
+     */
+    private final class StreamTransport implements Transport {
+        private final OutputStream sout;
+        private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closing;
+        private volatile boolean closed;
+
+        StreamTransport(OutputStream sout) {
+            this.sout = sout;
+        }
+
+        @Override
+        public void write(byte[] data) {
+            if (closed)
+                return;
+            queue.add(data);
+            size.incrementAndGet();
+            QUEUED.increment();
+            schedule();
+        }
+
+        private void schedule() {
+            if (draining.compareAndSet(false, true))
+                writerPool.execute(this::drain);
+        }
+
+        private void drain() {
+            try {
+                byte[] data;
+                while ((data = queue.poll()) != null) {
+                    sout.write(data);
+                    size.decrementAndGet();
+                    QUEUED.decrement();
+                    if (queue.isEmpty()) {
+                        sout.flush();
+                        WRITES.increment();
                     }
-                } catch (Exception ex) {
-                    sendLine("ERR|EX|" + ex.getMessage());
-                    sendLine("END");
                 }
+            } catch (IOException e) {
+                abort();
+            } finally {
+                draining.set(false);
             }
-        } catch (IOException ignored) {
-        } finally {
-            ClientHub.get().unregisterHandler(this, authedUserId);
+            if (!queue.isEmpty())
+                schedule();     // written after the last poll but before draining was cleared
+            else if (closing)
+                abort();
+            else
+                onDrained();
+        }
+
+        @Override
+        public int queued() {
+            return size.get();
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            schedule();     // a drain pass that finds the queue empty closes the socket
+        }
+
+        @Override
+        public void abort() {
+            closed = true;
             try {
                 socket.close();
             } catch (IOException ignored) {
             }
+            int n = 0;
+            while (queue.poll() != null)
+                n++;
+            size.addAndGet(-n);
+            QUEUED.add(-n);
+        }
+    }
+
+    /** Set before the hub forgets this handler; pool commands still running after that must not re-add it. */
+    boolean isGone() {
+        return gone;
+    }
+
+    void onOpen() {
+        sendLine("WELCOME");
+    }
+
+    void onClose() {
+        gone = true;
+        ClientHub.get().unregisterHandler(this, authedUserId);
+    }
+
+    /**
+     * Executes one request: the command and its arguments as {@link CommandTokenizer} splits
+     * a text line, and the request's tag (null if none). Requests of one connection must be
+     * fed in order and never concurrently.
+     *
+     * A request may start with a tag, #rid| (rid without '|'); every line of its response
+     * then starts with the same tag, so a client can match responses to requests, and the
+     * response is closed by {@link #END_OF_RESPONSE} whatever the command printed last.
+     * Untagged requests get the classic untagged response and no marker.
+     *
+     * With a command pool set, tagged commands are handed to it and may complete out of
+     * order; see {@link #orderingKey}. At most MAX_IN_FLIGHT of them are queued or running
+     * per connection; past that this call waits, so the caller stops taking requests (the
+     * NIO inbox fills and reading pauses). Untagged ones, and QUIT, run inline, in order,
+     * once every command of this connection still in the pool has finished.
+     *
+     * @return false once the client sent QUIT
+     */
+    boolean handle(String tag, String[] p) {
+        String cmd = p[0].trim();
+        if (cmd.isEmpty())
+            return true;
+        if (tag == null && cmd.equals("PROTO") && !binary) {
+            // answered in text; everything after PROTO_OK|BIN is frames, both ways
+            boolean upgrade = isUpgrade(null, p);
+            sendLine(upgrade ? Wire.UPGRADE_OK : Wire.UPGRADE_REFUSED);
+            binary = upgrade;
+            return true;
+        }
+
+        KeyedExecutor pool = commandPool;
+        if (tag != null && pool != null && !cmd.equals("QUIT")) {
+            // never inline past MAX_IN_FLIGHT: that could overtake queued commands of the same key
+            inFlight.acquireUninterruptibly();
+            String t = tag;
+            pool.execute(orderingKey(cmd, p), () -> {
+                try {
+                    execute(t, cmd, p);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            return true;
+        }
+        if (inFlight.availablePermits() < MAX_IN_FLIGHT) {
+            // wait for this connection's pool commands, so an inline one never runs beside them
+            inFlight.acquireUninterruptibly(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
         }
+        return execute(tag, cmd, p);
+    }
+
+    /** Orders one connection's CHAT_SENDs to one conversation. */
+    private record ConvOrder(ClientHandler sender, String convId) {
+    }
+
+    /**
+     * Which commands must stay in order: CHAT_SEND per conversation (as sent by this
+     * connection; sends from different clients have no order to keep, and serializing them
+     * would defeat the group commit), other writes per acting user, subscriptions per
+     * connection. Reads (null) may run in any order.
+     */
+    private Object orderingKey(String cmd, String[] p) {
+        return switch (cmd) {
+            case "CHAT_SEND" -> new ConvOrder(this, arg(p, 1));
+            case "POST_CREATE", "CHAT_OPEN", "APPT_BOOK", "TEACHER_REGISTER", "TEACHER_INTEREST", "SESSION_REGISTER" ->
+                "user:" + arg(p, 1);
+            case "POST_DELETE", "COMMENT_CREATE", "COMMENT_DELETE" -> "user:" + arg(p, 2);
+            case "SIGNUP" -> "signup:" + arg(p, 1);
+            case "AUTH", "CHAT_SUB", "CHAT_UNSUB", "COMMENT_SUB", "COMMENT_UNSUB", "FEED_SUB", "FEED_UNSUB" -> this;
+            default -> null;
+        };
+    }
+
+    private static String arg(String[] p, int i) {
+        return i < p.length ? p[i].trim() : "";
+    }
+
+    /** Executes one binary frame: the tag ("" = untagged), then the command fields. */
+    boolean handleFrame(String[] frame) {
+        if (frame.length < 2)
+            return true;
+        return handle(frame[0].isEmpty() ? null : frame[0], Arrays.copyOfRange(frame, 1, frame.length));
+    }
+
+    /** Runs one command; its response lines (and end marker) are written together at the end. */
+    private boolean execute(String tag, String cmd, String[] p) {
+        Reply r = new Reply(this, tag, new ByteArrayOutputStream(256));
+        REPLY.set(r);
+        try {
+            return dispatch(cmd, p);
+        } finally {
+            REPLY.remove();
+            if (tag != null)
+                emit(r, END_OF_RESPONSE, null);
+            var o = this.out;
+            if (o != null && r.lines().size() > 0)
+                o.write(r.lines().toByteArray());
+        }
+    }
+
+    private boolean dispatch(String cmd, String[] p) {
+        try {
+            switch (cmd) {
+                case "PING" -> sendLine("PONG");
+                case "STATS" -> handleStats(); // END
+
+                // ===== auth & subs =====
+                case "AUTH" -> { // AUTH|userId
+                    authedUserId = Integer.parseInt(p[1]);
+                    ClientHub.get().registerUser(authedUserId, this);
+                    sendFields("AUTH_OK", authedUserId);
+                }
+                case "CHAT_SUB" -> handleChatSub(p); // SUB_OK (+missed MSG lines)
+                case "CHAT_UNSUB" -> {
+                    ClientHub.get().unsubscribe(Integer.parseInt(p[1]), this);
+                    sendFields("UNSUB_OK", p[1]);
+                }
+                case "COMMENT_SUB" -> {
+                    ClientHub.get().subscribeComment(Integer.parseInt(p[1]), this);
+                    sendFields("CSUB_OK", p[1]);
+                }
+                case "COMMENT_UNSUB" -> {
+                    ClientHub.get().unsubscribeComment(Integer.parseInt(p[1]), this);
+                    sendFields("CUNSUB_OK", p[1]);
+                }
+                case "FEED_SUB" -> { // pushes POST_NEW|... and POST_DELETED|postId
+                    ClientHub.get().subscribeFeed(this);
+                    sendLine("FSUB_OK");
+                }
+                case "FEED_UNSUB" -> {
+                    ClientHub.get().unsubscribeFeed(this);
+                    sendLine("FUNSUB_OK");
+                }
+
+                // ===== users =====
+                case "LOGIN" -> handleLogin(p);
+                case "SIGNUP" -> handleSignup(p);
+                case "USER_GET" -> handleUserGet(p); // END
+                case "USER_PROFILE" -> handleUserProfile(p); // END
+
+                // ===== posts & comments (images + delete) =====
+                case "POST_CREATE" -> handlePostCreate(p); // END
+                case "POST_DELETE" -> handlePostDelete(p); // END
+                case "COMMENT_CREATE" -> handleCommentCreate(p); // END (+push)
+                case "COMMENT_DELETE" -> handleCommentDelete(p); // END
+                case "FEED_HOME" -> handleFeedHome(); // END
+                case "FEED_PAGE" -> handleFeedPage(p); // END
+                case "FEED_SINCE" -> handleFeedSince(p); // END
+                case "FEED_BY_USER" -> handleFeedByUser(p); // END
+                case "COMMENTS_WITH_USERS" -> handleCommentsWithUsers(p);// END
+                case "FETCH_POSTS" -> handleFetchPosts(); // END (legacy)
+                case "FETCH_COMMENTS" -> handleFetchComments(p); // END (legacy)
+
+                // ===== doctors / appts =====
+                case "DOCTOR_LIST" -> handleDoctorList(); // END
+                case "DOCTOR_GET" -> handleDoctorGet(p); // END
+                case "DOCTOR_FIND_BY_USER" -> handleDoctorFindByUser(p); // END
+                case "APPT_SLOTS" -> handleApptSlots(p); // END
+                case "APPT_BOOK" -> handleApptBook(p); // END
+
+                // ===== teachers (Search Private Teacher) =====
+                case "TEACHER_LIST" -> handleTeacherList(); // END
+                case "TEACHER_GET" -> handleTeacherGet(p); // END
+                case "TEACHER_INTEREST" -> handleTeacherInterest(p); // END
+                case "TEACHER_REGISTER" -> handleTeacherRegister(p); // END
+
+                // ===== chat =====
+                case "MY_CONVS" -> handleMyConvs(p); // END
+                case "USER_SEARCH" -> handleUserSearch(p); // END
+                case "CHAT_OPEN" -> handleChatOpen(p); // END
+                case "CHAT_SEND" -> handleChatSendAndBroadcast(p); // END (+push)
+                case "CHAT_FETCH" -> handleChatFetch(p); // END
+                case "CHAT_HISTORY" -> handleChatHistory(p); // END
+
+                // ===== health sessions =====
+                case "SESSIONS_UPCOMING" -> handleSessionsUpcoming(); // END
+                case "SESSION_GET" -> handleSessionGet(p); // END
+                case "SESSION_REGISTER" -> handleSessionRegister(p); // END
+
+                case "QUIT" -> {
+                    return false;
+                }
+                default -> sendFields("ERR", "UNKNOWN", cmd);
+            }
+        } catch (Exception ex) {
+            sendFields("ERR", "EX", ex.getMessage());
+            sendLine("END");
+        }
+        return true;
+    }
+
+    private void handleStats() {
+        Metrics.snapshot().forEach((name, value) -> sendFields("STAT", name, value));
+        sendLine("END");
     }
 
     // ===== users =====
@@ -134,14 +565,14 @@ public class ClientHandler implements Runnable {
             sendLine("ERR|LOGIN|ARGS");
             return;
         }
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,display_name,IFNULL(role,'USER') FROM users WHERE email=? AND password_hash=?")) {
             ps.setString(1, p[1]);
             ps.setString(2, p[2]);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next())
-                    sendLine("LOGIN_OK|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+                    sendFields("LOGIN_OK", rs.getInt(1), rs.getString(2), rs.getString(3));
                 else
                     sendLine("ERR|LOGIN|Invalid");
             }
@@ -162,7 +593,7 @@ public class ClientHandler implements Runnable {
             ps.executeUpdate();
             sendLine("SIGNUP_OK");
         } catch (SQLException e) {
-            sendLine("ERR|SIGNUP|" + e.getMessage());
+            sendFields("ERR", "SIGNUP", e.getMessage());
         }
     }
 
@@ -173,13 +604,13 @@ public class ClientHandler implements Runnable {
             return;
         }
         int uid = Integer.parseInt(p[1]);
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,display_name,IFNULL(role,'USER') FROM users WHERE id=?")) {
             ps.setInt(1, uid);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next())
-                    sendLine("USER|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+                    sendFields("USER", rs.getInt(1), rs.getString(2), rs.getString(3));
                 else
                     sendLine("ERR|USER_GET|NOT_FOUND");
             }
@@ -204,15 +635,15 @@ public class ClientHandler implements Runnable {
         }
         int uid = Integer.parseInt(p[1]);
 
-        try (Connection c = Db.get()) {
+        try (Connection c = Db.read()) {
             // header
             try (PreparedStatement ps = c.prepareStatement(
                     "SELECT id,display_name,email,IFNULL(role,'USER') FROM users WHERE id=?")) {
                 ps.setInt(1, uid);
                 try (ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
-                        sendLine("PROFILE|" + rs.getInt(1) + "|" +
-                                safe(rs.getString(2)) + "|" + safe(rs.getString(3)) + "|" + safe(rs.getString(4)));
+                        sendFields("PROFILE", rs.getInt(1), safe(rs.getString(2)), safe(rs.getString(3)),
+                                safe(rs.getString(4)));
                     } else {
                         sendLine("ERR|USER_PROFILE|NOT_FOUND");
                         sendLine("END");
@@ -229,9 +660,8 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, uid);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        sendLine("BOOKING|" + rs.getInt(1) + "|" + rs.getInt(2) + "|" +
-                                safe(rs.getString(3)) + "|" + safe(rs.getString(4)) + "|" +
-                                safe(rs.getString(5)) + "|" + safe(rs.getString(6)));
+                        sendFields("BOOKING", rs.getInt(1), rs.getInt(2), safe(rs.getString(3)), safe(rs.getString(4)),
+                                safe(rs.getString(5)), safe(rs.getString(6)));
                     }
                 }
             }
@@ -248,11 +678,9 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, uid);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        sendLine("REG|" + rs.getInt(1) + "|" + rs.getInt(2) + "|" +
-                                safe(rs.getString(3)) + "|" + safe(rs.getString(4)) + "|" +
-                                safe(rs.getString(5)) + "|" + safe(rs.getString(6)) + "|" +
-                                safe(rs.getString(7)) + "|" + rs.getInt(8) + "|" +
-                                safe(rs.getString(9)) + "|" + safe(rs.getString(10)));
+                        sendFields("REG", rs.getInt(1), rs.getInt(2), safe(rs.getString(3)), safe(rs.getString(4)),
+                                safe(rs.getString(5)), safe(rs.getString(6)), safe(rs.getString(7)), rs.getInt(8),
+                                safe(rs.getString(9)), safe(rs.getString(10)));
                     }
                 }
             }
@@ -266,8 +694,8 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, uid);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        sendLine("OUTCOME|" + rs.getInt(1) + "|" +
-                                safe(rs.getString(2)) + "|" + safe(rs.getString(3)) + "|" + safe(rs.getString(4)));
+                        sendFields("OUTCOME", rs.getInt(1), safe(rs.getString(2)), safe(rs.getString(3)),
+                                safe(rs.getString(4)));
                     }
                 }
             }
@@ -286,7 +714,7 @@ public class ClientHandler implements Runnable {
             return;
         }
         int userId = Integer.parseInt(p[1]);
-        String content = p[2] == null ? "" : p[2].replace("\n", " ").replace("|", " ");
+        String content = p[2] == null ? "" : p[2];
         String imageUrl = (p.length >= 4) ? p[3].trim() : "";
         int anonymous = 0;
         if (p.length >= 5) {
@@ -297,17 +725,30 @@ public class ClientHandler implements Runnable {
             sendLine("END");
             return;
         }
-        try (Connection c = Db.get();
-                PreparedStatement ps = c.prepareStatement(
-                        "INSERT INTO posts(user_id,content,image_url,anonymous) VALUES (?,?,?,?)")) {
-            ps.setInt(1, userId);
-            ps.setString(2, content);
-            ps.setString(3, imageUrl);
-            ps.setInt(4, anonymous);
-            ps.executeUpdate();
-            sendLine("POST_OK");
-            sendLine("END");
+        GroupCommitWriter.Inserted row = Db.writes().insertAndWait(
+                "INSERT INTO posts(user_id,content,image_url,anonymous) VALUES (?,?,?,?)",
+                userId, content, imageUrl, anonymous);
+        FeedCache.get().catchUp();
+        if (ClientHub.get().hasFeedSubscribers()) {
+            String name = "Anonymous";
+            String role = "USER";
+            try (Connection c = Db.read();
+                    PreparedStatement ps = c.prepareStatement(
+                            "SELECT COALESCE(display_name,'Anonymous'),COALESCE(role,'USER') FROM users WHERE id=?")) {
+                ps.setInt(1, userId);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        name = anonymous == 1 ? "Anonymous" : rs.getString(1);
+                        role = rs.getString(2);
+                    }
+                }
+            }
+            // same fields as a POST| line of FEED_PAGE
+            ClientHub.get().broadcastFeed("POST_NEW", row.id(), userId, name, role, content, row.createdAt(),
+                    imageUrl);
         }
+        sendLine("POST_OK");
+        sendLine("END");
     }
 
     private void handlePostDelete(String[] p) throws Exception {
@@ -339,7 +780,9 @@ public class ClientHandler implements Runnable {
                 d2.setInt(1, postId);
                 d2.executeUpdate();
             }
-            sendLine("POST_DEL_OK|" + postId);
+            FeedCache.get().catchUp();
+            ClientHub.get().broadcastFeed("POST_DELETED", postId);
+            sendFields("POST_DEL_OK", postId);
             sendLine("END");
         }
     }
@@ -353,7 +796,7 @@ public class ClientHandler implements Runnable {
         }
         int postId = Integer.parseInt(p[1]);
         int userId = Integer.parseInt(p[2]);
-        String content = p[3] == null ? "" : p[3].replace("\n", " ").replace("|", " ");
+        String content = p[3] == null ? "" : p[3];
         String imageUrl = (p.length >= 5) ? p[4].trim() : "";
         if (content.isBlank() && imageUrl.isBlank()) {
             sendLine("ERR|COMMENT|EMPTY");
@@ -365,26 +808,12 @@ public class ClientHandler implements Runnable {
         String created;
         String name;
         String role;
-        try (Connection c = Db.get()) {
-            try (PreparedStatement ps = c.prepareStatement(
-                    "INSERT INTO comments(post_id,user_id,content,image_url) VALUES (?,?,?,?)",
-                    Statement.RETURN_GENERATED_KEYS)) {
-                ps.setInt(1, postId);
-                ps.setInt(2, userId);
-                ps.setString(3, content);
-                ps.setString(4, imageUrl);
-                ps.executeUpdate();
-                try (ResultSet rs = ps.getGeneratedKeys()) {
-                    rs.next();
-                    id = rs.getInt(1);
-                }
-            }
-            try (PreparedStatement ps = c.prepareStatement("SELECT created_at FROM comments WHERE id=?")) {
-                ps.setInt(1, id);
-                try (ResultSet rs = ps.executeQuery()) {
-                    created = rs.next() ? rs.getString(1) : "";
-                }
-            }
+        GroupCommitWriter.Inserted row = Db.writes().insertAndWait(
+                "INSERT INTO comments(post_id,user_id,content,image_url) VALUES (?,?,?,?)",
+                postId, userId, content, imageUrl);
+        id = row.id();
+        created = row.createdAt();
+        try (Connection c = Db.read()) {
             try (PreparedStatement ps = c
                     .prepareStatement("SELECT display_name,IFNULL(role,'USER') FROM users WHERE id=?")) {
                 ps.setInt(1, userId);
@@ -399,9 +828,8 @@ public class ClientHandler implements Runnable {
                 }
             }
         }
-        ClientHub.get().broadcastComment(postId,
-                "COMMENT_NEW|" + postId + "|" + id + "|" + userId + "|" + name + "|" + role + "|" + content + "|"
-                        + created + "|" + imageUrl);
+        ClientHub.get().broadcastComment(postId, "COMMENT_NEW", postId, id, userId, name, role, content, created,
+                imageUrl);
         sendLine("COMMENT_OK");
         sendLine("END");
     }
@@ -431,34 +859,120 @@ public class ClientHandler implements Runnable {
                 d.setInt(1, cid);
                 d.executeUpdate();
             }
-            sendLine("COMMENT_DEL_OK|" + cid);
+            sendFields("COMMENT_DEL_OK", cid);
             sendLine("END");
         }
     }
 
     private void handleFeedHome() throws Exception {
-        try (Connection c = Db.get();
-                Statement st = c.createStatement();
-        ResultSet rs = st.executeQuery(
-            "SELECT p.id,p.user_id,COALESCE(u.display_name,'Anonymous'),COALESCE(u.role,'USER'),p.content,p.created_at,COALESCE(p.image_url,''),IFNULL(p.anonymous,0) "
-                +
-                "FROM posts p LEFT JOIN users u ON u.id=p.user_id ORDER BY p.id DESC LIMIT 100")) {
-        while (rs.next()) {
-        int postId = rs.getInt(1);
-        int userId = rs.getInt(2);
-        String display = rs.getString(3);
-        String role = rs.getString(4);
-        String content = rs.getString(5).replace("\n", " ");
-        String created = rs.getString(6);
-        String image = rs.getString(7);
-        int anon = rs.getInt(8);
-        String outName = (anon == 1) ? "Anonymous" : display;
-        sendLine("POST|" + postId + "|" + userId + "|" + outName + "|" + role + "|" + content + "|" + created + "|" + image);
+        FeedCache.Page cached = FeedCache.get().page(0, 100);
+        if (cached != null) {
+            cached.rows().forEach(this::sendFields);
+            sendLine("END");
+            return;
         }
+        try (Connection c = Db.read();
+                PreparedStatement st = c.prepareStatement(FeedCache.FEED_SELECT + "ORDER BY p.id DESC LIMIT 100");
+                ResultSet rs = st.executeQuery()) {
+            while (rs.next())
+                sendFields(FeedCache.postFields(rs));
             sendLine("END");
         }
     }
 
+    /**
+     * FEED_PAGE|beforeId|limit: posts with id &lt; beforeId (0 = newest), newest first. Walks
+     * the posts primary key from beforeId, so a page costs the same however deep it is.
+     * PAGE_NEXT|id is sent when there may be more; pass it back as the next beforeId.
+     * The first page also carries FEED_VERSION|v, the starting point for FEED_SINCE.
+     */
+    private void handleFeedPage(String[] p) throws Exception {
+        int beforeId = 0;
+        int limit = 20;
+        try {
+            if (p.length >= 2 && !p[1].isBlank())
+                beforeId = Integer.parseInt(p[1].trim());
+            if (p.length >= 3 && !p[2].isBlank())
+                limit = Integer.parseInt(p[2].trim());
+        } catch (NumberFormatException e) {
+            sendLine("ERR|FEED_PAGE|ARGS");
+            sendLine("END");
+            return;
+        }
+        boolean first = beforeId <= 0;
+        limit = Math.max(1, Math.min(100, limit));
+
+        int count = 0;
+        int lastId = 0;
+        long version;
+        FeedCache.Page cached = FeedCache.get().page(first ? 0 : beforeId, limit);
+        if (cached != null) {
+            version = cached.version();
+            for (Object[] row : cached.rows()) {
+                sendFields(row);
+                lastId = (Integer) row[1];
+                count++;
+            }
+        } else {
+            try (Connection c = Db.read()) {
+                c.setAutoCommit(false);     // the version must match the rows
+                version = FeedCache.currentVersion(c);
+                try (PreparedStatement ps = c.prepareStatement(
+                        FeedCache.FEED_SELECT + "WHERE p.id<? ORDER BY p.id DESC LIMIT ?")) {
+                    ps.setInt(1, first ? Integer.MAX_VALUE : beforeId);
+                    ps.setInt(2, limit);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            sendFields(FeedCache.postFields(rs));
+                            lastId = rs.getInt(1);
+                            count++;
+                        }
+                    }
+                }
+                c.commit();
+            }
+        }
+        if (count == limit)
+            sendFields("PAGE_NEXT", lastId);
+        if (first)
+            sendFields("FEED_VERSION", version);
+        sendLine("END");
+    }
+
+    /**
+     * FEED_SINCE|version: what changed in the feed after version, one line per post in
+     * change order: POST|... for new or edited posts, POST_DEL|id for deleted ones. Ends
+     * with FEED_VERSION|v for the next call. FEED_RESET is sent instead when too much
+     * changed; the client should reload the first page.
+     */
+    private void handleFeedSince(String[] p) throws Exception {
+        long version;
+        try {
+            version = Long.parseLong(p[1].trim());
+        } catch (RuntimeException e) {
+            sendLine("ERR|FEED_SINCE|ARGS");
+            sendLine("END");
+            return;
+        }
+        FeedCache.Delta d;
+        try (Connection c = Db.read()) {
+            d = FeedCache.since(c, version, 500);
+        }
+        if (d == null) {
+            sendLine("FEED_RESET");
+            sendLine("END");
+            return;
+        }
+        for (FeedCache.Change ch : d.changes()) {
+            if (ch.fields() != null)
+                sendFields(ch.fields());
+            else
+                sendFields("POST_DEL", ch.postId());
+        }
+        sendFields("FEED_VERSION", d.version());
+        sendLine("END");
+    }
+
     private void handleFeedByUser(String[] p) throws Exception { // FEED_BY_USER|viewedUserId[|viewerUserId]
         if (p.length < 2) {
             sendLine("ERR|FEED_BY_USER|ARGS");
@@ -470,7 +984,7 @@ public class ClientHandler implements Runnable {
         if (p.length >= 3) {
             try { viewer = Integer.parseInt(p[2]); } catch (Exception ignored) { viewer = -1; }
         }
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT p.id,p.user_id,COALESCE(u.display_name,'Anonymous'),COALESCE(u.role,'USER'),p.content,p.created_at,COALESCE(p.image_url,''),IFNULL(p.anonymous,0) "
                                 +
@@ -482,13 +996,13 @@ public class ClientHandler implements Runnable {
                     int userId = rs.getInt(2);
                     String display = rs.getString(3);
                     String role = rs.getString(4);
-                    String content = rs.getString(5).replace("\n", " ");
+                    String content = rs.getString(5);
                     String created = rs.getString(6);
                     String image = rs.getString(7);
                     int anon = rs.getInt(8);
                     // if anonymous and the viewer is not the owner, show Anonymous
                     String outName = (anon == 1 && viewer != userId) ? "Anonymous" : display;
-                    sendLine("POST|" + postId + "|" + userId + "|" + outName + "|" + role + "|" + content + "|" + created + "|" + image);
+                    sendFields("POST", postId, userId, outName, role, content, created, image);
                 }
             }
             sendLine("END");
@@ -502,7 +1016,7 @@ public class ClientHandler implements Runnable {
             return;
         }
         int postId = Integer.parseInt(p[1]);
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT c.id,u.id,u.display_name,IFNULL(u.role,'USER'),c.content,c.created_at,IFNULL(c.image_url,'') "
                                 +
@@ -510,9 +1024,8 @@ public class ClientHandler implements Runnable {
             ps.setInt(1, postId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    sendLine("COMMENT|" + rs.getInt(1) + "|" + rs.getInt(2) + "|" + rs.getString(3) + "|" +
-                            rs.getString(4) + "|" + rs.getString(5).replace("\n", " ") + "|" + rs.getString(6) + "|"
-                            + rs.getString(7));
+                    sendFields("COMMENT", rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4),
+                            rs.getString(5), rs.getString(6), rs.getString(7));
                 }
             }
             sendLine("END");
@@ -521,15 +1034,14 @@ public class ClientHandler implements Runnable {
 
     // legacy (not used by new UI, but kept)
     private void handleFetchPosts() throws Exception {
-        try (Connection c = Db.get();
-                Statement st = c.createStatement();
-                ResultSet rs = st.executeQuery(
+        try (Connection c = Db.read();
+                PreparedStatement st = c.prepareStatement(
                         "SELECT p.id, COALESCE(u.display_name,'Anonymous'), p.content, p.created_at, COALESCE(p.image_url,'') "
                                 +
-                                "FROM posts p LEFT JOIN users u ON u.id=p.user_id ORDER BY p.id DESC LIMIT 100")) {
+                                "FROM posts p LEFT JOIN users u ON u.id=p.user_id ORDER BY p.id DESC LIMIT 100");
+                ResultSet rs = st.executeQuery()) {
             while (rs.next()) {
-                sendLine("POST|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3).replace("\n", " ") + "|"
-                        + rs.getString(4) + "|" + rs.getString(5));
+                sendFields("POST", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
             }
             sendLine("END");
         }
@@ -542,15 +1054,14 @@ public class ClientHandler implements Runnable {
             return;
         }
         int postId = Integer.parseInt(p[1]);
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT c.id,u.display_name,c.content,c.created_at " +
                                 "FROM comments c JOIN users u ON u.id=c.user_id WHERE c.post_id=? ORDER BY c.id ASC")) {
             ps.setInt(1, postId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    sendLine("COMMENT|" + rs.getInt(1) + "|" + rs.getString(2) + "|" +
-                            rs.getString(3).replace("\n", " ") + "|" + rs.getString(4));
+                    sendFields("COMMENT", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
                 }
             }
             sendLine("END");
@@ -560,13 +1071,12 @@ public class ClientHandler implements Runnable {
     // ===== doctors / appointments =====
 
     private void handleDoctorList() throws Exception {
-        try (Connection c = Db.get();
-                Statement st = c.createStatement();
-                ResultSet rs = st.executeQuery(
-                        "SELECT id,name,specialty,IFNULL(photo_url,'') FROM doctors ORDER BY name")) {
+        try (Connection c = Db.read();
+                PreparedStatement st = c.prepareStatement(
+                        "SELECT id,name,specialty,IFNULL(photo_url,'') FROM doctors ORDER BY name");
+                ResultSet rs = st.executeQuery()) {
             while (rs.next()) {
-                sendLine("DOCTOR|" + rs.getInt(1) + "|" + rs.getString(2) + "|" +
-                        rs.getString(3) + "|" + rs.getString(4));
+                sendFields("DOCTOR", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4));
             }
             sendLine("END");
         }
@@ -579,7 +1089,7 @@ public class ClientHandler implements Runnable {
             return;
         }
         int id = Integer.parseInt(p[1]);
-        try (Connection c = Db.get()) {
+        try (Connection c = Db.read()) {
             try (PreparedStatement ps = c.prepareStatement(
                     "SELECT id,name,specialty,IFNULL(bio,''),IFNULL(photo_url,''),IFNULL(user_id,0) FROM doctors WHERE id=?")) {
                 ps.setInt(1, id);
@@ -589,8 +1099,8 @@ public class ClientHandler implements Runnable {
                         sendLine("END");
                         return;
                     }
-                    sendLine("DOCTOR|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3) + "|" +
-                            rs.getString(4).replace("\n", " ") + "|" + rs.getString(5) + "|" + rs.getInt(6));
+                    sendFields("DOCTOR", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                            rs.getString(5), rs.getInt(6));
                 }
             }
             try (PreparedStatement ps = c.prepareStatement(
@@ -598,7 +1108,7 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, id);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next())
-                        sendLine("SCHED|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+                        sendFields("SCHED", rs.getInt(1), rs.getString(2), rs.getString(3));
                 }
             }
             sendLine("END");
@@ -612,13 +1122,13 @@ public class ClientHandler implements Runnable {
             return;
         }
         int uid = Integer.parseInt(p[1]);
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,name FROM doctors WHERE user_id=?")) {
             ps.setInt(1, uid);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next())
-                    sendLine("DOCTOR_ID|" + rs.getInt(1) + "|" + rs.getString(2));
+                    sendFields("DOCTOR_ID", rs.getInt(1), rs.getString(2));
                 else
                     sendLine("ERR|DOC_FIND|NOT_FOUND");
             }
@@ -639,7 +1149,7 @@ public class ClientHandler implements Runnable {
         int dow = date.getDayOfWeek().getValue(); // 1..7
 
         List<String> windows = new ArrayList<>();
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT start_time,end_time FROM doctor_schedules WHERE doctor_id=? AND day_of_week=? ORDER BY start_time")) {
             ps.setInt(1, doctorId);
@@ -658,11 +1168,13 @@ public class ClientHandler implements Runnable {
 
         // booked times (same date)
         Set<String> booked = new HashSet<>();
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
-                        "SELECT substr(start_at,12,5) AS HHMM FROM appointments WHERE doctor_id=? AND date(start_at)=?")) {
+                        // range on the raw ISO text (not date(start_at)) so idx_appointments_doctor_start applies
+                        "SELECT substr(start_at,12,5) AS HHMM FROM appointments WHERE doctor_id=? AND start_at>=? AND start_at<?")) {
             ps.setInt(1, doctorId);
             ps.setString(2, date.toString());
+            ps.setString(3, date.plusDays(1).toString());
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next())
                     booked.add(rs.getString(1));
@@ -689,7 +1201,7 @@ public class ClientHandler implements Runnable {
             }
         }
 
-        sendLine("SLOTS|" + String.join(",", out));
+        sendFields("SLOTS", String.join(",", out));
         sendLine("END");
     }
 
@@ -712,7 +1224,7 @@ public class ClientHandler implements Runnable {
 
         int dow = start.getDayOfWeek().getValue();
         boolean inside = false;
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT start_time,end_time FROM doctor_schedules WHERE doctor_id=? AND day_of_week=?")) {
             ps.setInt(1, doctorId);
@@ -736,7 +1248,7 @@ public class ClientHandler implements Runnable {
         }
 
         // already booked?
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ck = c.prepareStatement(
                         "SELECT 1 FROM appointments WHERE doctor_id=? AND start_at=? LIMIT 1")) {
             ck.setInt(1, doctorId);
@@ -793,35 +1305,37 @@ public class ClientHandler implements Runnable {
                                 + String.format("%02d:%02d", start.getHour(), start.getMinute()) +
                                 ". Video link: " + url;
                         try (PreparedStatement ins = c.prepareStatement(
-                                "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)")) {
+                                "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?) RETURNING id, created_at")) {
                             ins.setInt(1, convId);
                             ins.setInt(2, doctorUserId);
                             ins.setString(3, msg);
-                            ins.executeUpdate();
+                            try (ResultSet ids = ins.executeQuery()) {
+                                ids.next();
+                                int msgId = ids.getInt(1);
+                                ClientHub.get().broadcast(convId, msgId, "MSG", convId, msgId, doctorUserId, msg, ids.getString(2));
+                            }
                         }
-                        ClientHub.get().broadcast(convId,
-                                "MSG|" + convId + "|0|" + doctorUserId + "|" + msg + "|" + LocalDateTime.now());
                     }
                 }
             }
         }
 
-        sendLine("APPT_OK|" + apptId + "|" + url);
+        sendFields("APPT_OK", apptId, url);
         sendLine("END");
     }
 
     // ===== teachers =====
 
     private void handleTeacherList() throws Exception {
-        try (Connection c = Db.get();
-                Statement st = c.createStatement();
-                ResultSet rs = st.executeQuery(
+        try (Connection c = Db.read();
+                PreparedStatement st = c.prepareStatement(
                         "SELECT id,name,IFNULL(qualification,''),IFNULL(salary_min,0),IFNULL(salary_max,0),IFNULL(photo_url,''),IFNULL(user_id,0) "
                                 +
-                                "FROM teachers ORDER BY id DESC")) {
+                                "FROM teachers ORDER BY id DESC");
+                ResultSet rs = st.executeQuery()) {
             while (rs.next()) {
-                sendLine("TEACHER|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3) + "|" +
-                        rs.getInt(4) + "|" + rs.getInt(5) + "|" + rs.getString(6) + "|" + rs.getInt(7));
+                sendFields("TEACHER", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5),
+                        rs.getString(6), rs.getInt(7));
             }
             sendLine("END");
         }
@@ -834,7 +1348,7 @@ public class ClientHandler implements Runnable {
             return;
         }
         int id = Integer.parseInt(p[1]);
-        try (Connection c = Db.get()) {
+        try (Connection c = Db.read()) {
             try (PreparedStatement ps = c.prepareStatement(
                     "SELECT id,name,IFNULL(qualification,''),IFNULL(salary_min,0),IFNULL(salary_max,0),IFNULL(photo_url,''),IFNULL(user_id,0) "
                             +
@@ -846,8 +1360,8 @@ public class ClientHandler implements Runnable {
                         sendLine("END");
                         return;
                     }
-                    sendLine("TEACHER|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3) + "|" +
-                            rs.getInt(4) + "|" + rs.getInt(5) + "|" + rs.getString(6) + "|" + rs.getInt(7));
+                    sendFields("TEACHER", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4), rs.getInt(5),
+                            rs.getString(6), rs.getInt(7));
                 }
             }
             try (PreparedStatement ps = c.prepareStatement(
@@ -855,7 +1369,7 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, id);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
-                        sendLine("SCHED|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+                        sendFields("SCHED", rs.getInt(1), rs.getString(2), rs.getString(3));
                     }
                 }
             }
@@ -930,7 +1444,7 @@ public class ClientHandler implements Runnable {
                 }
             }
 
-            sendLine("TEACHER_REG_OK|" + teacherId);
+            sendFields("TEACHER_REG_OK", teacherId);
             sendLine("END");
         }
     }
@@ -946,7 +1460,7 @@ public class ClientHandler implements Runnable {
         int teacherId = Integer.parseInt(p[2]);
 
         int teacherUserId = 0;
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement("SELECT IFNULL(user_id,0) FROM teachers WHERE id=?")) {
             ps.setInt(1, teacherId);
             try (ResultSet rs = ps.executeQuery()) {
@@ -966,18 +1480,16 @@ public class ClientHandler implements Runnable {
             if (existing == null)
                 existing = createConversation(c, me, teacherUserId);
             convId = existing;
-
-            String msg = "Hello there! I am interested to hire you as a teacher for my child. So I want to talk in details.";
-            try (PreparedStatement ps = c.prepareStatement(
-                    "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)")) {
-                ps.setInt(1, convId);
-                ps.setInt(2, me);
-                ps.setString(3, msg);
-                ps.executeUpdate();
-            }
         }
 
-        sendLine("INTEREST_OK|" + convId);
+        // like CHAT_SEND: through the hub, so subscribers and the replay buffer see it
+        String msg = "Hello there! I am interested to hire you as a teacher for my child. So I want to talk in details.";
+        GroupCommitWriter.Inserted row = Db.writes().insertAndWait(
+                "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)",
+                convId, me, msg);
+        ClientHub.get().broadcast(convId, row.id(), "MSG", convId, row.id(), me, msg, row.createdAt());
+
+        sendFields("INTEREST_OK", convId);
         sendLine("END");
     }
 
@@ -996,7 +1508,7 @@ public class ClientHandler implements Runnable {
                 "FROM chat_conversations cc " +
                 "WHERE EXISTS (SELECT 1 FROM chat_members m WHERE m.conversation_id=cc.id AND m.user_id=?) " +
                 "ORDER BY cc.id DESC";
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(sql)) {
             ps.setInt(1, userId);
             ps.setInt(2, userId);
@@ -1005,7 +1517,7 @@ public class ClientHandler implements Runnable {
                     String title = rs.getString(2);
                     if (title == null)
                         title = "Chat";
-                    sendLine("CONV|" + rs.getInt(1) + "|" + title);
+                    sendFields("CONV", rs.getInt(1), title);
                 }
             }
             sendLine("END");
@@ -1019,13 +1531,13 @@ public class ClientHandler implements Runnable {
             return;
         }
         String q = "%" + p[1] + "%";
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,display_name,IFNULL(role,'USER') FROM users WHERE display_name LIKE ? ORDER BY display_name LIMIT 20")) {
             ps.setString(1, q);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    sendLine("USER|" + rs.getInt(1) + "|" + rs.getString(2) + "|" + rs.getString(3));
+                    sendFields("USER", rs.getInt(1), rs.getString(2), rs.getString(3));
                 }
             }
             sendLine("END");
@@ -1044,7 +1556,7 @@ public class ClientHandler implements Runnable {
             Integer convId = findExistingConversation(c, me, other);
             if (convId == null)
                 convId = createConversation(c, me, other);
-            sendLine("CHAT_OK|" + convId);
+            sendFields("CHAT_OK", convId);
             sendLine("END");
         }
     }
@@ -1098,34 +1610,53 @@ public class ClientHandler implements Runnable {
 
         int id;
         String created;
-        try (Connection c = Db.get();
-                PreparedStatement ps = c.prepareStatement(
-                        "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)",
-                        Statement.RETURN_GENERATED_KEYS)) {
-            ps.setInt(1, convId);
-            ps.setInt(2, sender);
-            ps.setString(3, msg);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (!rs.next()) {
-                    sendLine("ERR|CHAT_SEND|NO_ID");
-                    sendLine("END");
-                    return;
-                }
-                id = rs.getInt(1);
-            }
-            try (PreparedStatement ts = c.prepareStatement("SELECT created_at FROM chat_messages WHERE id=?")) {
-                ts.setInt(1, id);
-                try (ResultSet trs = ts.executeQuery()) {
-                    created = trs.next() ? trs.getString(1) : "";
+        GroupCommitWriter.Inserted row = Db.writes().insertAndWait(
+                "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)",
+                convId, sender, msg);
+        id = row.id();
+        created = row.createdAt();
+
+        ClientHub.get().broadcast(convId, id, "MSG", convId, id, sender, msg, created);
+        sendFields("SEND_OK", id);
+        sendLine("END");
+    }
+
+    /**
+     * CHAT_SUB|convId or, after a reconnect, CHAT_SUB|convId|lastSeenId: then the messages
+     * the client missed come first, pushed as the MSG lines they were; from the replay
+     * buffer when lastSeenId is at or above its floor, else from the database.
+     * Live pushes wait until the missed ones are written, so they cannot overtake them.
+     */
+    private void handleChatSub(String[] p) throws Exception {
+        int convId = Integer.parseInt(p[1]);
+        if (p.length < 3 || p[2].isBlank()) {
+            ClientHub.get().subscribe(convId, this);
+            sendFields("SUB_OK", p[1]);
+            return;
+        }
+        int lastSeenId = Integer.parseInt(p[2].trim());
+        holdPushes();
+        try {
+            List<Object[]> missed = ClientHub.get().subscribeFrom(convId, lastSeenId, this);
+            if (missed != null) {
+                for (Object[] m : missed)
+                    emit(null, null, m);
+            } else {
+                try (Connection c = Db.read();
+                        PreparedStatement ps = c.prepareStatement(
+                        "SELECT id,sender_user_id,content,created_at FROM chat_messages WHERE conversation_id=? AND id>? ORDER BY id ASC")) {
+                    ps.setInt(1, convId);
+                    ps.setInt(2, lastSeenId);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next())
+                            emit(null, null, new Object[] { "MSG", convId, rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4) });
+                    }
                 }
             }
+        } finally {
+            releasePushes();
         }
-
-        ClientHub.get().broadcast(convId,
-                "MSG|" + convId + "|" + id + "|" + sender + "|" + msg.replace("\n", " ") + "|" + created);
-        sendLine("SEND_OK|" + id);
-        sendLine("END");
+        sendFields("SUB_OK", p[1]);
     }
 
     private void handleChatFetch(String[] p) throws Exception { // CHAT_FETCH|convId|afterId
@@ -1136,33 +1667,95 @@ public class ClientHandler implements Runnable {
         }
         int convId = Integer.parseInt(p[1]);
         int afterId = Integer.parseInt(p[2]);
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,sender_user_id,content,created_at FROM chat_messages WHERE conversation_id=? AND id>? ORDER BY id ASC")) {
             ps.setInt(1, convId);
             ps.setInt(2, afterId);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    sendLine("MSG|" + rs.getInt(1) + "|" + rs.getInt(2) + "|" +
-                            rs.getString(3).replace("\n", " ") + "|" + rs.getString(4));
+                    sendFields("MSG", rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4));
                 }
             }
             sendLine("END");
         }
     }
 
+    /**
+     * CHAT_HISTORY|convId|beforeId|limit: the limit newest messages with an id below beforeId
+     * (0 or blank: the newest), oldest first, as CHAT_FETCH prints them; then PAGE_NEXT|id
+     * to pass as the next beforeId when there may be older ones. Limit defaults to 50,
+     * capped at 200. The first page usually comes from the replay buffer, once the index
+     * confirms where it starts.
+     */
+    private void handleChatHistory(String[] p) throws Exception {
+        int convId;
+        int beforeId = 0;
+        int limit = 50;
+        try {
+            convId = Integer.parseInt(p[1].trim());
+            if (p.length >= 3 && !p[2].isBlank())
+                beforeId = Integer.parseInt(p[2].trim());
+            if (p.length >= 4 && !p[3].isBlank())
+                limit = Integer.parseInt(p[3].trim());
+        } catch (RuntimeException e) {
+            sendLine("ERR|CHAT_HISTORY|ARGS");
+            sendLine("END");
+            return;
+        }
+        limit = Math.max(1, Math.min(200, limit));
+
+        List<Object[]> page = new ArrayList<>(limit);
+        try (Connection c = Db.read()) {
+            // which id the page starts at, from the index; the replay buffer must agree
+            int lowest = 0;
+            try (PreparedStatement ps = c.prepareStatement(
+                    "SELECT id FROM chat_messages WHERE conversation_id=? AND id<? ORDER BY id DESC LIMIT 1 OFFSET ?")) {
+                ps.setInt(1, convId);
+                ps.setInt(2, beforeId <= 0 ? Integer.MAX_VALUE : beforeId);
+                ps.setInt(3, limit - 1);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next())
+                        lowest = rs.getInt(1);
+                }
+            }
+            List<Object[]> recent = ClientHub.get().recentMessages(convId, beforeId, limit, lowest);
+            if (recent != null) {
+                for (Object[] m : recent)   // MSG|convId|id|sender|content|created, as pushed
+                    page.add(new Object[] { "MSG", m[2], m[3], m[4], m[5] });
+            } else {
+                try (PreparedStatement ps = c.prepareStatement(
+                        "SELECT id,sender_user_id,content,created_at FROM chat_messages "
+                                + "WHERE conversation_id=? AND id<? ORDER BY id DESC LIMIT ?")) {
+                    ps.setInt(1, convId);
+                    ps.setInt(2, beforeId <= 0 ? Integer.MAX_VALUE : beforeId);
+                    ps.setInt(3, limit);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next())
+                            page.add(new Object[] { "MSG", rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getString(4) });
+                    }
+                }
+                Collections.reverse(page);
+            }
+        }
+        for (Object[] m : page)
+            sendFields(m);
+        if (page.size() == limit)
+            sendFields("PAGE_NEXT", page.get(0)[1]);
+        sendLine("END");
+    }
+
     // ===== health sessions =====
 
     private void handleSessionsUpcoming() throws Exception {
-        try (Connection c = Db.get();
+        try (Connection c = Db.read();
                 PreparedStatement ps = c.prepareStatement(
                         "SELECT id,name,IFNULL(short_desc,''),date,start_time,end_time " +
                                 "FROM health_sessions WHERE date >= DATE('now') ORDER BY date ASC, id ASC")) {
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    sendLine("SESSION|" + rs.getInt(1) + "|" + rs.getString(2) + "|" +
-                            rs.getString(3).replace("\n", " ") + "|" + rs.getString(4) + "|" +
-                            rs.getString(5) + "|" + rs.getString(6));
+                    sendFields("SESSION", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                            rs.getString(5), rs.getString(6));
                 }
             }
             sendLine("END");
@@ -1176,7 +1769,7 @@ public class ClientHandler implements Runnable {
             return;
         }
         int sid = Integer.parseInt(p[1]);
-        try (Connection c = Db.get()) {
+        try (Connection c = Db.read()) {
             try (PreparedStatement ps = c.prepareStatement(
                     "SELECT id,name,IFNULL(short_desc,''),date,start_time,end_time FROM health_sessions WHERE id=?")) {
                 ps.setInt(1, sid);
@@ -1186,9 +1779,8 @@ public class ClientHandler implements Runnable {
                         sendLine("END");
                         return;
                     }
-                    sendLine("SESSION|" + rs.getInt(1) + "|" + rs.getString(2) + "|" +
-                            rs.getString(3).replace("\n", " ") + "|" + rs.getString(4) + "|" +
-                            rs.getString(5) + "|" + rs.getString(6));
+                    sendFields("SESSION", rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                            rs.getString(5), rs.getString(6));
                 }
             }
             try (PreparedStatement ps = c.prepareStatement(
@@ -1196,7 +1788,7 @@ public class ClientHandler implements Runnable {
                 ps.setInt(1, sid);
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next())
-                        sendLine("LOC|" + sid + "|" + rs.getInt(1) + "|" + rs.getString(2));
+                        sendFields("LOC", sid, rs.getInt(1), rs.getString(2));
                 }
             }
             sendLine("END");
@@ -1239,7 +1831,7 @@ public class ClientHandler implements Runnable {
             ps.executeUpdate();
             try (ResultSet rs = ps.getGeneratedKeys()) {
                 if (rs.next()) {
-                    sendLine("REG_OK|" + rs.getInt(1));
+                    sendFields("REG_OK", rs.getInt(1));
                     sendLine("END");
                     return;
                 }
@@ -1,56 +1,118 @@
-package com.pa.server;
-
-import java.util.concurrent.*;
-import java.util.concurrent.CopyOnWriteArraySet;
-
-/** In-memory pub/sub hub for sockets. Supports chat and comments topics. */
-public final class ClientHub {
-    private static final ClientHub INSTANCE = new ClientHub();
-    public static ClientHub get() { return INSTANCE; }
-
-    private final ConcurrentMap<Integer, CopyOnWriteArraySet<ClientHandler>> chatSubs = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Integer, CopyOnWriteArraySet<ClientHandler>> commentSubs = new ConcurrentHashMap<>();
-    private final ConcurrentMap<Integer, CopyOnWriteArraySet<ClientHandler>> userHandlers = new ConcurrentHashMap<>();
-
-    private ClientHub() {}
-
-    // ---- user presence
-    public void registerUser(Integer userId, ClientHandler h) {
-        if (userId == null) return;
-        userHandlers.computeIfAbsent(userId, k -> new CopyOnWriteArraySet<>()).add(h);
-    }
-    public void unregisterHandler(ClientHandler h, Integer userId) {
-        if (userId != null) {
-            var set = userHandlers.get(userId);
-            if (set != null) set.remove(h);
-        }
-        chatSubs.values().forEach(s -> s.remove(h));
-        commentSubs.values().forEach(s -> s.remove(h));
-    }
-
-    // ---- chat topics
-    public void subscribe(int convId, ClientHandler h) {
-        chatSubs.computeIfAbsent(convId, k -> new CopyOnWriteArraySet<>()).add(h);
-    }
-    public void unsubscribe(int convId, ClientHandler h) {
-        var set = chatSubs.get(convId);
-        if (set != null) set.remove(h);
-    }
-    public void broadcast(int convId, String line) {
-        var set = chatSubs.get(convId);
-        if (set != null) set.forEach(h -> h.sendLine(line));
-    }
-
-    // ---- comment topics (per post)
-    public void subscribeComment(int postId, ClientHandler h) {
-        commentSubs.computeIfAbsent(postId, k -> new CopyOnWriteArraySet<>()).add(h);
-    }
-    public void unsubscribeComment(int postId, ClientHandler h) {
-        var set = commentSubs.get(postId);
-        if (set != null) set.remove(h);
-    }
-    public void broadcastComment(int postId, String line) {
-        var set = commentSubs.get(postId);
-        if (set != null) set.forEach(h -> h.sendLine(line));
-    }
-}
+package com.pa.server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * In-memory pub/sub hub for sockets. Supports chat, comments and feed topics. Broadcasts
+ * return right away; {@link FanOut} delivers them.
+ *
+ * Subscriber sets are concurrent hash sets (nothing is copied on subscribe), a topic's
+ * entry goes away with its last subscriber, and each handler's topics are indexed so a
+ * disconnect only touches those, however many topics exist. Chat messages are also kept
+ * in a {@link ChatReplay} for clients resuming after a reconnect.
+ */
+public final class ClientHub {
+    private static final ClientHub INSTANCE = new ClientHub();
+    public static ClientHub get() { return INSTANCE; }
+
+    private static final int CHAT = 0, COMMENT = 1, FEED = 2;
+    /** A topic; also the ordering key its messages are delivered under. */
+    private record Topic(int kind, int id) {}
+    private static final Topic FEED_TOPIC = new Topic(FEED, 0);
+
+    private final ConcurrentMap<Topic, Set<ClientHandler>> topics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ClientHandler, Set<Topic>> topicsOf = new ConcurrentHashMap<>();   // reverse index
+    private final ConcurrentMap<Integer, Set<ClientHandler>> userHandlers = new ConcurrentHashMap<>();
+    private final ChatReplay replay = new ChatReplay();
+    private final FanOut fanOut = new FanOut(
+            Integer.getInteger("pa.server.fanout.threads", Runtime.getRuntime().availableProcessors()));
+
+    private ClientHub() {
+        Metrics.gauge("hub.topics", topics::size);
+        Metrics.gauge("hub.subscribed_handlers", topicsOf::size);
+    }
+
+    // ---- user presence
+    public void registerUser(Integer userId, ClientHandler h) {
+        if (userId == null) return;
+        add(userHandlers, userId, h);
+        if (h.isGone()) remove(userHandlers, userId, h);     // a late AUTH: unregisterHandler may have run already
+    }
+    public void unregisterHandler(ClientHandler h, Integer userId) {
+        if (userId != null) remove(userHandlers, userId, h);
+        Set<Topic> mine = topicsOf.remove(h);
+        if (mine != null) mine.forEach(t -> remove(topics, t, h));
+    }
+
+    // ---- chat topics
+    public void subscribe(int convId, ClientHandler h) { join(new Topic(CHAT, convId), h); }
+    public void unsubscribe(int convId, ClientHandler h) { leave(new Topic(CHAT, convId), h); }
+    /**
+     * Subscribes h and returns the messages after lastSeenId it would otherwise miss, or null
+     * if they have to come from the database. Messages arriving meanwhile may be both
+     * returned and pushed; clients drop ids they already have.
+     */
+    public List<Object[]> subscribeFrom(int convId, int lastSeenId, ClientHandler h) {
+        join(new Topic(CHAT, convId), h);
+        return replay.since(convId, lastSeenId);
+    }
+    /** Publishes the MSG line of stored message msgId; recorded first so subscribeFrom cannot miss it. */
+    public void broadcast(int convId, int msgId, Object... fields) {
+        replay.record(convId, msgId, fields);
+        publish(new Topic(CHAT, convId), fields);
+    }
+    /**
+     * MSG lines (as broadcast) of the newest messages below beforeId from memory, or null;
+     * lowest: the id the database has for the oldest of them. See ChatReplay.
+     */
+    public List<Object[]> recentMessages(int convId, int beforeId, int limit, int lowest) {
+        return replay.latest(convId, beforeId, limit, lowest);
+    }
+    /** Lets resumes be answered from memory; maxId: the highest chat message id stored before startup. */
+    public void startReplay(int maxId) { replay.start(maxId); }
+
+    // ---- comment topics (per post)
+    public void subscribeComment(int postId, ClientHandler h) { join(new Topic(COMMENT, postId), h); }
+    public void unsubscribeComment(int postId, ClientHandler h) { leave(new Topic(COMMENT, postId), h); }
+    public void broadcastComment(int postId, Object... fields) { publish(new Topic(COMMENT, postId), fields); }
+
+    // ---- feed topic (new/deleted posts)
+    public void subscribeFeed(ClientHandler h) { join(FEED_TOPIC, h); }
+    public void unsubscribeFeed(ClientHandler h) { leave(FEED_TOPIC, h); }
+    public boolean hasFeedSubscribers() { return topics.containsKey(FEED_TOPIC); }
+    public void broadcastFeed(Object... fields) { publish(FEED_TOPIC, fields); }
+
+    // ---- internals
+    // checked after adding: either unregisterHandler sees the entries or this sees h gone and undoes them
+    private void join(Topic t, ClientHandler h) {
+        add(topics, t, h);
+        topicsOf.computeIfAbsent(h, k -> ConcurrentHashMap.newKeySet()).add(t);
+        if (h.isGone()) {
+            remove(topics, t, h);
+            topicsOf.remove(h);
+        }
+    }
+    private void leave(Topic t, ClientHandler h) {
+        remove(topics, t, h);
+        var mine = topicsOf.get(h);
+        if (mine != null) mine.remove(t);
+    }
+    private void publish(Topic t, Object[] fields) {
+        var set = topics.get(t);
+        if (set != null) fanOut.publish(t, set, fields);
+    }
+
+    // compute: atomic per key, so an entry is never dropped while someone is being added to it
+    private static <K> void add(ConcurrentMap<K, Set<ClientHandler>> map, K key, ClientHandler h) {
+        map.compute(key, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(h);
+            return set;
+        });
+    }
+    private static <K> void remove(ConcurrentMap<K, Set<ClientHandler>> map, K key, ClientHandler h) {
+        map.computeIfPresent(key, (k, set) -> set.remove(h) && set.isEmpty() ? null : set);
+    }
+}
@@ -0,0 +1,194 @@
+package com.pa.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits text request lines into fields in one pass over their UTF-8 bytes: the command
+ * first, then its arguments, as the handlers take them; the #rid| tag, if any, is kept
+ * apart in {@link #tag()}.
+ *
+ * Replaces String.split on a decoded line: its fast path for "\\|" skips the regex, but
+ * the line, the tag substring, a list and a String per field were still built every time.
+ * Here the only allocations are the result array and the fields that really are new text:
+ * a known command name comes back as its String constant (so the dispatch switch compares
+ * identical instances), small numbers as cached Strings parsed straight from the digits,
+ * and "" as "".
+ *
+ * This is not allocation-free parsing. Every line still costs a String[], a number of
+ * 4096 or more costs a String, and handlers still read numbers with Integer.parseInt, which
+ * allocates nothing on the cached Strings. Offsets into the line cannot replace the
+ * array: NioServer queues requests for the worker pool, and by the time a handler runs the
+ * scratch buffer already holds later lines.
+ *
+ * One instance per connection: it reuses its scratch buffer and is not thread-safe.
+ */
+public final class CommandTokenizer {
+    /** Every command ClientHandler dispatches, PROTO included; others still work, they just allocate. */
+    private static final String[] COMMANDS = {
+            "PING", "STATS", "PROTO", "QUIT",
+            "AUTH", "CHAT_SUB", "CHAT_UNSUB", "COMMENT_SUB", "COMMENT_UNSUB", "FEED_SUB", "FEED_UNSUB",
+            "LOGIN", "SIGNUP", "USER_GET", "USER_PROFILE",
+            "POST_CREATE", "POST_DELETE", "COMMENT_CREATE", "COMMENT_DELETE",
+            "FEED_HOME", "FEED_PAGE", "FEED_SINCE", "FEED_BY_USER", "COMMENTS_WITH_USERS", "FETCH_POSTS", "FETCH_COMMENTS",
+            "DOCTOR_LIST", "DOCTOR_GET", "DOCTOR_FIND_BY_USER", "APPT_SLOTS", "APPT_BOOK",
+            "TEACHER_LIST", "TEACHER_GET", "TEACHER_INTEREST", "TEACHER_REGISTER",
+            "MY_CONVS", "USER_SEARCH", "CHAT_OPEN", "CHAT_SEND", "CHAT_FETCH", "CHAT_HISTORY",
+            "SESSIONS_UPCOMING", "SESSION_GET", "SESSION_REGISTER",
+    };
+    private static final int TABLE = 128;     // open addressing over COMMANDS, a power of two
+    private static final String[] TABLE_NAMES = new String[TABLE];
+    private static final byte[][] TABLE_BYTES = new byte[TABLE][];
+    private static final int SMALL_INTS = 4096;
+    private static final String[] SMALL_INT_STRINGS = new String[SMALL_INTS];
+    private static final int MAX_FIELDS = 64;
+
+    static {
+        for (String c : COMMANDS) {
+            byte[] b = c.getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(b, 0, b.length) & (TABLE - 1);
+            while (TABLE_NAMES[slot] != null)
+                slot = (slot + 1) & (TABLE - 1);
+            TABLE_NAMES[slot] = c;
+            TABLE_BYTES[slot] = b;
+        }
+        for (int i = 0; i < SMALL_INTS; i++)
+            SMALL_INT_STRINGS[i] = Integer.toString(i).intern();
+    }
+
+    /** What a blank line tokenizes to: an empty command, which is ignored. */
+    static final String[] BLANK = { "" };
+
+    private byte[] scratch = new byte[512];
+    private final int[] bounds = new int[2 * MAX_FIELDS];
+    private String tag;
+
+    /** The tag (rid) of the line tokenized last, null if it had none. */
+    public String tag() {
+        return tag;
+    }
+
+    /** Fields of the line in src[from, to) (no '\n'); src's position is left alone. */
+    public String[] tokenize(ByteBuffer src, int from, int to) {
+        int len = to - from;
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        src.get(from, scratch, 0, len);
+        return tokenize(scratch, 0, len);
+    }
+
+    /** Fields of the line in b[off, off + len) (no '\n'). */
+    public String[] tokenize(byte[] b, int off, int len) {
+        int end = off + len;
+        if (end > off && b[end - 1] == '\r')
+            end--;
+        int start = off;
+        while (start < end && b[start] == ' ')
+            start++;
+        tag = null;
+        if (start == end)
+            return BLANK;
+
+        if (b[start] == '#') {
+            int bar = indexOf(b, start + 1, end);
+            if (bar > start + 1) {
+                tag = text(b, start + 1, bar);
+                start = bar + 1;
+            }
+        }
+        int n = 0;
+        int from = start;
+        while (true) {
+            int bar = indexOf(b, from, end);
+            if (n == MAX_FIELDS - 1 || bar < 0)
+                bar = end;      // the last field keeps any further '|'
+            bounds[2 * n] = from;
+            bounds[2 * n + 1] = bar;
+            n++;
+            if (bar == end)
+                break;
+            from = bar + 1;
+        }
+
+        String[] out = new String[n];
+        out[0] = command(b, bounds[0], bounds[1]);
+        for (int i = 1; i < n; i++)
+            out[i] = field(b, bounds[2 * i], bounds[2 * i + 1]);
+        return out;
+    }
+
+    /** Reads and tokenizes one line; null at end of stream. */
+    public String[] readLine(InputStream in) throws IOException {
+        int len = 0;
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                if (len == 0)
+                    return null;
+                break;
+            }
+            if (len == scratch.length) {
+                if (len >= Wire.MAX_FRAME)
+                    throw new IOException("line too long");
+                scratch = Arrays.copyOf(scratch, len * 2);
+            }
+            scratch[len++] = (byte) c;
+        }
+        return tokenize(scratch, 0, len);
+    }
+
+    private static int indexOf(byte[] b, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (b[i] == '|')
+                return i;
+        }
+        return -1;
+    }
+
+    /** The command, trimmed, as its constant when it is a known one. */
+    private static String command(byte[] b, int from, int to) {
+        while (from < to && b[from] == ' ')
+            from++;
+        while (to > from && b[to - 1] == ' ')
+            to--;
+        int len = to - from;
+        for (int slot = hash(b, from, to) & (TABLE - 1); TABLE_NAMES[slot] != null; slot = (slot + 1) & (TABLE - 1)) {
+            byte[] c = TABLE_BYTES[slot];
+            if (c.length == len && Arrays.equals(c, 0, len, b, from, to))
+                return TABLE_NAMES[slot];
+        }
+        return text(b, from, to);
+    }
+
+    private static int hash(byte[] b, int from, int to) {
+        int h = to - from;
+        for (int i = from; i < to; i++)
+            h = 31 * h + b[i];
+        return h ^ (h >>> 7);
+    }
+
+    private static String field(byte[] b, int from, int to) {
+        int len = to - from;
+        if (len == 0)
+            return "";
+        if (len <= 4) {
+            int v = 0;
+            for (int i = from; i < to; i++) {
+                int d = b[i] - '0';
+                if (d < 0 || d > 9 || (i == from && d == 0 && len > 1))
+                    return text(b, from, to);   // not a plain number ("007" must stay "007")
+                v = v * 10 + d;
+            }
+            if (v < SMALL_INTS)
+                return SMALL_INT_STRINGS[v];
+        }
+        return text(b, from, to);
+    }
+
+    private static String text(byte[] b, int from, int to) {
+        return new String(b, from, to - from, StandardCharsets.UTF_8);
+    }
+}
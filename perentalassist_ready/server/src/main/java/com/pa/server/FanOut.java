@@ -0,0 +1,74 @@
+package com.pa.server;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The delivery stage behind {@link ClientHub}: publishing a message takes a snapshot of the
+ * topic's subscribers and returns; the message is encoded once ({@link Push}) and queued on
+ * every subscriber's connection from a ForkJoinPool, in slices of up to SLICE subscribers
+ * that run in parallel. Messages of one topic are delivered one after the other, so each
+ * subscriber sees them in publishing order; different topics go independently.
+ *
+ * -Dpa.server.fanout.threads sizes the pool (default: one per core); 0 delivers inline on
+ * the publishing thread, as ClientHub used to.
+ */
+final class FanOut {
+    private static final int SLICE = 512;
+    private static final LongAdder MESSAGES = Metrics.counter("hub.messages");
+    private static final LongAdder DELIVERIES = Metrics.counter("hub.deliveries");
+
+    private final KeyedExecutor topics;       // null = inline
+
+    FanOut(int threads) {
+        if (threads <= 0) {
+            topics = null;
+            return;
+        }
+        topics = new KeyedExecutor(new ForkJoinPool(threads));
+        Metrics.gauge("hub.topics_delivering", topics::activeKeys);
+    }
+
+    /** topic: any object that identifies the topic for ordering. */
+    void publish(Object topic, Collection<ClientHandler> subscribers, Object[] fields) {
+        if (subscribers.isEmpty())
+            return;
+        MESSAGES.increment();
+        Slice all = new Slice(subscribers.toArray(new ClientHandler[0]), 0, -1, new Push(fields));
+        if (topics == null)
+            all.compute();
+        else
+            topics.execute(topic, all::invoke);    // runs on a pool thread, so the slices fork into the pool
+    }
+
+    private static final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ClientHandler[] to;
+        private final int from;
+        private final int until;
+        private final Push push;
+
+        /** until < 0: the whole array. */
+        Slice(ClientHandler[] to, int from, int until, Push push) {
+            this.to = to;
+            this.from = from;
+            this.until = until < 0 ? to.length : until;
+            this.push = push;
+        }
+
+        @Override
+        protected void compute() {
+            if (until - from <= SLICE) {
+                for (int i = from; i < until; i++)
+                    to[i].push(push);
+                DELIVERIES.add(until - from);
+                return;
+            }
+            int mid = (from + until) >>> 1;
+            invokeAll(new Slice(to, from, mid, push), new Slice(to, mid, until, push));
+        }
+    }
+}
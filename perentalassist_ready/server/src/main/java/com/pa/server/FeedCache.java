@@ -0,0 +1,244 @@
+package com.pa.server;
+
+import com.pa.server.dao.Db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The newest posts of the timeline as ready-to-send POST rows, so FEED_HOME and the
+ * first FEED_PAGE requests are answered without touching SQLite.
+ *
+ * Loaded lazily from the database together with the post_changes version it reflects.
+ * After every POST_CREATE/POST_DELETE, {@link #catchUp()} applies the changes logged since
+ * that version, the same delta FEED_SINCE sends to clients. It holds a little more than a
+ * page of FEED_HOME so a few deletes don't force a reload. Readers get an immutable snapshot.
+ */
+public final class FeedCache {
+    private static final FeedCache INSTANCE = new FeedCache();
+    public static FeedCache get() { return INSTANCE; }
+
+    static final String FEED_SELECT =
+            "SELECT p.id,p.user_id,COALESCE(u.display_name,'Anonymous'),COALESCE(u.role,'USER'),p.content,p.created_at,COALESCE(p.image_url,''),IFNULL(p.anonymous,0) "
+                    + "FROM posts p LEFT JOIN users u ON u.id=p.user_id ";
+
+    // newest change per post after a version; posts gone since then come back with NULL columns
+    private static final String DELTA_SELECT =
+            "SELECT p.id,p.user_id,COALESCE(u.display_name,'Anonymous'),COALESCE(u.role,'USER'),p.content,p.created_at,COALESCE(p.image_url,''),IFNULL(p.anonymous,0),ch.post_id,ch.v "
+                    + "FROM (SELECT post_id, MAX(version) v FROM post_changes WHERE version>? GROUP BY post_id) ch "
+                    + "LEFT JOIN posts p ON p.id=ch.post_id LEFT JOIN users u ON u.id=p.user_id ORDER BY ch.v LIMIT ?";
+
+    private static final int HEAD = 100;    // what FEED_HOME returns
+    private static final int CAPACITY = Math.max(HEAD, Integer.getInteger("pa.feed.cache", 150));
+
+    private record Row(int id, Object[] fields) {
+    }
+
+    /** Newest first. complete = the oldest post in the table is in here too. */
+    private record Snapshot(List<Row> rows, boolean complete, long version) {
+    }
+
+    /** One changed post: its current POST fields, or null when it was deleted. */
+    record Change(int postId, Object[] fields) {
+    }
+
+    /** Changes after some version, oldest first; version is where the next delta starts. */
+    record Delta(List<Change> changes, long version) {
+    }
+
+    /** A page of POST rows (fields as {@link #postFields} returns them) and the feed version they are current as of. */
+    public record Page(List<Object[]> rows, long version) {
+    }
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private volatile long lastRebuildMicros;
+
+    // a lock, not synchronized: loading does I/O and may run on virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Snapshot snapshot;     // null = not loaded
+
+    private FeedCache() {}
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long rebuilds() {
+        return rebuilds.sum();
+    }
+
+    public long lastRebuildMicros() {
+        return lastRebuildMicros;
+    }
+
+    /** Hits as a percentage of all lookups since startup. */
+    public long hitRatePercent() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : h * 100 / total;
+    }
+
+    /**
+     * Up to limit rows with id &lt; beforeId (0 = from the newest), or null when the cache
+     * cannot tell whether older posts exist beyond what it holds.
+     */
+    public Page page(int beforeId, int limit) throws SQLException {
+        Snapshot s = snapshot;
+        boolean loaded = s == null;
+        if (loaded)
+            s = rebuild();
+        List<Object[]> out = new ArrayList<>(Math.min(limit, s.rows().size()));
+        for (Row r : s.rows()) {
+            if (beforeId > 0 && r.id() >= beforeId)
+                continue;
+            out.add(r.fields());
+            if (out.size() == limit)
+                break;
+        }
+        boolean answered = out.size() == limit || s.complete();
+        (answered && !loaded ? hits : misses).increment();
+        return answered ? new Page(out, s.version()) : null;
+    }
+
+    private Snapshot rebuild() throws SQLException {
+        long t0 = System.nanoTime();
+        List<Row> rows = new ArrayList<>(CAPACITY);
+        long version;
+        try (Connection c = Db.read()) {
+            c.setAutoCommit(false);     // one read transaction: the rows match the version
+            version = currentVersion(c);
+            try (PreparedStatement ps = c.prepareStatement(FEED_SELECT + "ORDER BY p.id DESC LIMIT ?")) {
+                ps.setInt(1, CAPACITY);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next())
+                        rows.add(new Row(rs.getInt(1), postFields(rs)));
+                }
+            }
+            c.commit();
+        }
+        Snapshot s = new Snapshot(List.copyOf(rows), rows.size() < CAPACITY, version);
+        lastRebuildMicros = (System.nanoTime() - t0) / 1000;
+        rebuilds.increment();
+        lock.lock();
+        try {
+            Snapshot cur = snapshot;
+            if (cur != null && cur.version() >= s.version())
+                return cur;
+            snapshot = s;
+            // a change committed while we were loading skipped its catch-up (nothing was loaded yet)
+            catchUpLocked();
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called after a change to posts has committed. */
+    public void catchUp() throws SQLException {
+        lock.lock();
+        try {
+            catchUpLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void catchUpLocked() throws SQLException {
+        Snapshot s = snapshot;
+        if (s == null)
+            return;
+        Delta d;
+        try (Connection c = Db.read()) {
+            d = since(c, s.version(), CAPACITY);
+        }
+        if (d == null) {
+            snapshot = null;    // too far behind to patch; reload on the next read
+            return;
+        }
+        if (d.changes().isEmpty())
+            return;
+        List<Row> rows = new ArrayList<>(s.rows());
+        boolean complete = s.complete();
+        for (Change ch : d.changes()) {
+            rows.removeIf(r -> r.id() == ch.postId());
+            if (ch.fields() == null)
+                continue;
+            int at = 0;
+            while (at < rows.size() && rows.get(at).id() > ch.postId())
+                at++;
+            if (at == rows.size() && !complete)
+                continue;       // older than everything cached; it belongs to a page we don't hold
+            rows.add(at, new Row(ch.postId(), ch.fields()));
+        }
+        if (rows.size() > CAPACITY) {
+            rows.subList(CAPACITY, rows.size()).clear();
+            complete = false;
+        }
+        // out of slack: FEED_HOME could no longer be served, reload on the next read
+        snapshot = rows.size() < HEAD && !complete ? null : new Snapshot(List.copyOf(rows), complete, d.version());
+    }
+
+    /** Highest post_changes version, 0 for a database without changes. */
+    static long currentVersion(Connection c) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT IFNULL(MAX(version),0) FROM post_changes");
+                ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Posts changed after version, one entry per post, or null when more than max posts
+     * changed or the log no longer reaches back to version (the caller should reload instead).
+     */
+    static Delta since(Connection c, long version, int max) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("SELECT MIN(version) FROM post_changes");
+                ResultSet rs = ps.executeQuery()) {
+            long oldest = rs.next() ? rs.getLong(1) : 0;
+            if (oldest > version + 1)
+                return null;    // pruned: changes right after version are gone
+        }
+        List<Change> out = new ArrayList<>();
+        long last = version;
+        try (PreparedStatement ps = c.prepareStatement(DELTA_SELECT)) {
+            ps.setLong(1, version);
+            ps.setInt(2, max + 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (out.size() == max)
+                        return null;
+                    rs.getInt(1);
+                    Object[] fields = rs.wasNull() ? null : postFields(rs);
+                    out.add(new Change(rs.getInt(9), fields));
+                    last = rs.getLong(10);
+                }
+            }
+        }
+        return new Delta(out, last);
+    }
+
+    /** POST|id|userId|name|role|content|created|imageUrl from a FEED_SELECT row; anonymous posts hide the name. */
+    static Object[] postFields(ResultSet rs) throws SQLException {
+        int postId = rs.getInt(1);
+        int userId = rs.getInt(2);
+        String display = rs.getString(3);
+        String role = rs.getString(4);
+        String content = rs.getString(5);
+        String created = rs.getString(6);
+        String image = rs.getString(7);
+        int anon = rs.getInt(8);
+        String outName = (anon == 1) ? "Anonymous" : display;
+        return new Object[] { "POST", postId, userId, outName, role, content, created, image };
+    }
+}
@@ -0,0 +1,46 @@
+package com.pa.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks on a shared executor, one at a time and in submission order per key; tasks
+ * with different keys (or no key) run concurrently. A key's chain is dropped from the map
+ * once its last task finishes, so idle keys cost nothing.
+ */
+final class KeyedExecutor {
+    private final Executor pool;
+    private final ConcurrentMap<Object, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+
+    KeyedExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    /** key == null: no ordering constraint. */
+    void execute(Object key, Runnable task) {
+        if (key == null) {
+            pool.execute(task);
+            return;
+        }
+        var mine = new Object() {
+            CompletableFuture<Void> future;
+        };
+        tails.compute(key, (k, tail) -> {
+            // handleAsync, not thenRunAsync: a task that failed must not stop the ones queued behind it
+            mine.future = (tail == null ? CompletableFuture.<Void>completedFuture(null) : tail)
+                    .handleAsync((v, ex) -> {
+                        task.run();
+                        return null;
+                    }, pool);
+            return mine.future;
+        });
+        mine.future.whenComplete((v, ex) -> tails.remove(key, mine.future));
+    }
+
+    /** Keys with queued or running tasks; for STATS. */
+    int activeKeys() {
+        return tails.size();
+    }
+}
@@ -0,0 +1,48 @@
+package com.pa.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide named numbers for the STATS command. Gauges are read on demand,
+ * counters are LongAdders bumped from the hot path.
+ */
+public final class Metrics {
+    private static final Map<String, LongSupplier> VALUES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        VALUES.put(name, value);
+    }
+
+    /** Returns the counter registered under name, creating it on first use. */
+    public static LongAdder counter(String name) {
+        LongSupplier existing = VALUES.get(name);
+        if (existing instanceof Counter c)
+            return c.adder;
+        Counter c = new Counter();
+        LongSupplier prev = VALUES.putIfAbsent(name, c);
+        return prev instanceof Counter p ? p.adder : c.adder;
+    }
+
+    /** Current values, sorted by name. */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> out = new LinkedHashMap<>();
+        VALUES.forEach((k, v) -> out.put(k, v.getAsLong()));
+        return out;
+    }
+
+    private static final class Counter implements LongSupplier {
+        final LongAdder adder = new LongAdder();
+
+        @Override
+        public long getAsLong() {
+            return adder.sum();
+        }
+    }
+}
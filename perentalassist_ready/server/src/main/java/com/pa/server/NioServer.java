@@ -0,0 +1,364 @@
+package com.pa.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end: one selector thread owns every socket, a small worker pool
+ * runs the commands. An idle connection is just a registered key plus its
+ * {@link ClientHandler}; no thread and no buffer is parked on it.
+ */
+final class NioServer {
+    private static final int MAX_LINE = Wire.MAX_FRAME; // a longer line or frame closes the connection
+    private static final int LINES_PER_TURN = 32;      // fairness between busy connections
+    private static final int WRITE_BATCH = 64;         // buffers per gathering write
+    // requests parsed but not yet executed: reading a connection stops at HIGH, resumes at LOW
+    private static final int INBOX_HIGH = 256;
+    private static final int INBOX_LOW = 64;
+
+    private final int port;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final Queue<Conn> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Conn> pendingReads = new ConcurrentLinkedQueue<>();    // inboxes drained below LOW
+    // shared scratch space, selector thread only
+    private final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH];
+    private final CommandTokenizer tokens = new CommandTokenizer();
+
+    NioServer(int port, ExecutorService workers) throws IOException {
+        this.port = port;
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    void serve() throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server listening on " + port + " (nio)");
+
+            while (true) {
+                selector.select();
+                Conn w;
+                while ((w = pendingWrites.poll()) != null)
+                    addInterest(w, SelectionKey.OP_WRITE);
+                while ((w = pendingReads.poll()) != null) {
+                    if (!w.readPaused)
+                        addInterest(w, SelectionKey.OP_READ);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept(server);
+                        if (key.isValid() && key.isReadable())
+                            ((Conn) key.attachment()).onReadable();
+                        if (key.isValid() && key.isWritable())
+                            ((Conn) key.attachment()).onWritable();
+                    } catch (IOException | CancelledKeyException e) {
+                        if (key.attachment() instanceof Conn c)
+                            c.closeNow();
+                    }
+                }
+            }
+        } finally {
+            selector.close();
+        }
+    }
+
+    /** Selector thread. Any thread may close a connection, so its key can be cancelled under us. */
+    private static void addInterest(Conn c, int op) {
+        try {
+            if (c.key.isValid())
+                c.key.interestOps(c.key.interestOps() | op);
+        } catch (CancelledKeyException e) {
+            c.closeNow();
+        }
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel ch;
+        while ((ch = server.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Conn c = new Conn(ch);
+            c.key = ch.register(selector, SelectionKey.OP_READ, c);
+            c.handler.onOpen();
+        }
+    }
+
+    /** A text request line, split by the selector thread. */
+    private record Request(String tag, String[] p) {
+    }
+
+    /** One client socket; reads and writes happen on the selector thread only. */
+    private final class Conn implements ClientHandler.Transport {
+        private final SocketChannel ch;
+        private final ClientHandler handler = new ClientHandler(this);
+        private SelectionKey key;
+        private byte[] partial;                    // bytes of an unterminated line, usually null
+        private boolean frames;                    // past PROTO|BIN: input is binary frames
+        private final byte[] frameHead = new byte[4];
+        private int frameHeadLen;
+        private ByteBuffer frameBody;              // the frame being read, null between frames
+
+        // inbound text requests (Request) and frames (String[]), executed one at a time on the worker pool;
+        // past INBOX_HIGH of them OP_READ is cleared until the inbox is down to INBOX_LOW
+        private final ArrayDeque<Object> inbox = new ArrayDeque<>();
+        private boolean scheduled;
+        private volatile boolean readPaused;
+
+        // outbound buffers (a whole response or a push each), sent in gathering writes by the selector;
+        // ClientHandler bounds the pushes by queued
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private volatile boolean closing;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Conn(SocketChannel ch) {
+            this.ch = ch;
+        }
+
+        // ---- inbound
+
+        void onReadable() throws IOException {
+            readBuf.clear();
+            int n = ch.read(readBuf);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            readBuf.flip();
+            List<Object> lines = null;
+            while (readBuf.hasRemaining()) {
+                if (frames) {
+                    String[] f = readFrame();
+                    if (f == null)
+                        break;
+                    if (lines == null)
+                        lines = new ArrayList<>(4);
+                    lines.add(f);
+                    continue;
+                }
+                int start = readBuf.position();
+                int nl = -1;
+                for (int i = start; i < readBuf.limit(); i++) {
+                    if (readBuf.get(i) == '\n') {
+                        nl = i;
+                        break;
+                    }
+                }
+                if (nl < 0) {
+                    append(readBuf.limit() - start);
+                    break;
+                }
+                String[] p;
+                if (partial == null) {
+                    p = tokens.tokenize(readBuf, start, nl);    // the common case: the whole line is in readBuf
+                } else {
+                    append(nl - start);
+                    p = tokens.tokenize(partial, 0, partial.length);
+                    partial = null;
+                }
+                readBuf.position(nl + 1);
+                if (lines == null)
+                    lines = new ArrayList<>(4);
+                lines.add(new Request(tokens.tag(), p));
+                // decided here, not by the handler: the next bytes may already be in readBuf
+                frames = ClientHandler.isUpgrade(tokens.tag(), p);
+            }
+            if (lines != null)
+                enqueue(lines);
+        }
+
+        /** Consumes readBuf towards the next frame; the frame once complete, else null. */
+        private String[] readFrame() throws IOException {
+            if (frameBody == null) {
+                while (frameHeadLen < 4 && readBuf.hasRemaining())
+                    frameHead[frameHeadLen++] = readBuf.get();
+                if (frameHeadLen < 4)
+                    return null;
+                frameHeadLen = 0;
+                int len = ByteBuffer.wrap(frameHead).getInt();
+                if (len < 1 || len > MAX_LINE)
+                    throw new IOException("bad frame length " + len);
+                frameBody = ByteBuffer.allocate(len);
+            }
+            int n = Math.min(frameBody.remaining(), readBuf.remaining());
+            frameBody.put(readBuf.slice(readBuf.position(), n));
+            readBuf.position(readBuf.position() + n);
+            if (frameBody.hasRemaining())
+                return null;
+            ByteBuffer body = frameBody.flip();
+            frameBody = null;
+            return Wire.decode(body);
+        }
+
+        private void append(int len) throws IOException {
+            int have = partial == null ? 0 : partial.length;
+            if (have + len > MAX_LINE)
+                throw new IOException("line too long");
+            byte[] grown = partial == null ? new byte[len] : Arrays.copyOf(partial, have + len);
+            readBuf.get(grown, have, len);
+            partial = grown;
+        }
+
+        /** Selector thread. */
+        private void enqueue(List<Object> lines) {
+            boolean pause = false;
+            boolean start;
+            synchronized (inbox) {
+                inbox.addAll(lines);
+                if (inbox.size() >= INBOX_HIGH && !readPaused)
+                    pause = readPaused = true;
+                start = !scheduled;
+                scheduled = true;
+            }
+            if (pause)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (start)
+                workers.execute(this::drain);
+        }
+
+        private void drain() {
+            for (int i = 0; i < LINES_PER_TURN; i++) {
+                Object next;
+                boolean resume = false;
+                synchronized (inbox) {
+                    next = inbox.poll();
+                    if (readPaused && inbox.size() <= INBOX_LOW)
+                        resume = !(readPaused = false);
+                    if (next == null)
+                        scheduled = false;
+                }
+                if (resume) {
+                    pendingReads.add(this);
+                    selector.wakeup();
+                }
+                if (next == null)
+                    return;
+                if (closing)
+                    continue;
+                boolean more = next instanceof Request r ? handler.handle(r.tag(), r.p()) : handler.handleFrame((String[]) next);
+                if (!more) {
+                    close();
+                    synchronized (inbox) {
+                        inbox.clear();
+                    }
+                }
+            }
+            workers.execute(this::drain);
+        }
+
+        // ---- outbound
+
+        @Override
+        public void write(byte[] data) {
+            if (closed.get())
+                return;
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            outbox.add(buf);
+            queued.incrementAndGet();
+            ClientHandler.QUEUED.increment();
+            if (closed.get() && outbox.remove(buf)) {   // lost a race with closeNow
+                queued.decrementAndGet();
+                ClientHandler.QUEUED.decrement();
+                return;
+            }
+            requestWrite();
+        }
+
+        @Override
+        public int queued() {
+            return queued.get();
+        }
+
+        private void requestWrite() {
+            if (writeRequested.compareAndSet(false, true)) {
+                pendingWrites.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer[] batch = writeBatch;
+            while (true) {
+                int n = 0;
+                for (ByteBuffer b : outbox) {
+                    batch[n++] = b;
+                    if (n == batch.length)
+                        break;
+                }
+                if (n == 0)
+                    break;
+                ch.write(batch, 0, n);
+                ClientHandler.WRITES.increment();
+                for (int i = 0; i < n; i++) {
+                    if (batch[i].hasRemaining()) {
+                        Arrays.fill(batch, null);
+                        return;                   // socket buffer full, wait for the next OP_WRITE
+                    }
+                    if (outbox.poll() != null) {     // null if closeNow emptied it meanwhile
+                        queued.decrementAndGet();
+                        ClientHandler.QUEUED.decrement();
+                    }
+                }
+                Arrays.fill(batch, 0, n, null);
+            }
+            int read = readPaused ? 0 : SelectionKey.OP_READ;
+            key.interestOps(read);
+            writeRequested.set(false);
+            if (!outbox.isEmpty() && writeRequested.compareAndSet(false, true))
+                key.interestOps(read | SelectionKey.OP_WRITE);
+            else if (closing)
+                closeNow();
+            else
+                handler.onDrained();
+        }
+
+        /** Closes once everything already queued has been written. */
+        @Override
+        public void close() {
+            closing = true;
+            writeRequested.set(false);
+            requestWrite();
+        }
+
+        @Override
+        public void abort() {
+            closeNow();
+        }
+
+        /** Any thread; whatever is still queued is discarded. */
+        void closeNow() {
+            if (!closed.compareAndSet(false, true))
+                return;
+            closing = true;
+            if (key != null)
+                key.cancel();
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+            }
+            int n = 0;
+            while (outbox.poll() != null)
+                n++;
+            queued.addAndGet(-n);
+            ClientHandler.QUEUED.add(-n);
+            workers.execute(handler::onClose);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.pa.server;
+
+/**
+ * One pushed message, encoded at most once per wire format however many connections it
+ * goes to; the encoded bytes are shared (transports only read them).
+ */
+final class Push {
+    private final Object[] fields;
+    private volatile byte[] text;
+    private volatile byte[] frame;
+
+    Push(Object[] fields) {
+        this.fields = fields;
+    }
+
+    /** The untagged line or frame for a connection in the given mode. */
+    byte[] bytes(boolean binary) {
+        byte[] b = binary ? frame : text;
+        return b != null ? b : encode(binary);
+    }
+
+    private synchronized byte[] encode(boolean binary) {
+        if (binary) {
+            if (frame == null)
+                frame = Wire.frame(null, fields);
+            return frame;
+        }
+        if (text == null)
+            text = Wire.line(null, Wire.join(fields));
+        return text;
+    }
+}
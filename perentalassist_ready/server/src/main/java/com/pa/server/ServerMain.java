@@ -1,28 +1,103 @@
 package com.pa.server;
 
+import com.pa.server.dao.ConnectionPool;
 import com.pa.server.dao.Db;
+import com.pa.server.dao.GroupCommitWriter;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+/**
+ * Startup options (system properties):
+ *   pa.port            listen port (default 5555)
+ *   pa.server.mode     nio (default) | virtual | threads
+ *   pa.server.workers  command worker threads in nio and threads mode (default 2 x cores, at least 8)
+ *   pa.server.reorder  run tagged (#rid|) commands concurrently, see ClientHandler.handle (default true)
+ *   pa.db.readers      read-only SQLite connections in the pool (default 4)
+ *   pa.db.profile      storage PRAGMA profile: wal (default) | legacy, see StorageProfile
+ *   pa.db.statementCache  prepared statements kept per pooled connection (default 64, 0 = off)
+ *   pa.db.batch.max    most inserts the writer thread commits in one transaction (default 256)
+ *   pa.db.batch.delayMicros  how long it waits for more inserts before committing (default 1000)
+ *   pa.feed.cache      newest posts kept formatted in memory for FEED_HOME/FEED_PAGE (default 150)
+ */
 public class ServerMain {
     public static void main(String[] args) {
-        int port = 5555;
+        int port = Integer.getInteger("pa.port", 5555);
+        String mode = System.getProperty("pa.server.mode", "nio");
 
         // Initialize DB (creates tables/columns if needed)
         try {
-            Db.get();               // <-- don't call Db.init(); Db.get() runs init internally
+            Db.init();              // opens the connection pool and runs schema setup once
+            try (Connection c = Db.read();
+                    Statement st = c.createStatement();
+                    ResultSet rs = st.executeQuery("SELECT IFNULL(MAX(id),0) FROM chat_messages")) {
+                ClientHub.get().startReplay(rs.getInt(1));   // later messages all pass through the hub
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return;
         }
+        Metrics.gauge("db.stmt_cache.hits", ConnectionPool::statementCacheHits);
+        Metrics.gauge("db.stmt_cache.misses", ConnectionPool::statementCacheMisses);
+        Metrics.gauge("db.stmt_cache.evictions", ConnectionPool::statementCacheEvictions);
+        Metrics.gauge("db.group_commit.batches", GroupCommitWriter::batches);
+        Metrics.gauge("db.group_commit.inserts", GroupCommitWriter::inserts);
+        FeedCache feed = FeedCache.get();
+        Metrics.gauge("feed_cache.hits", feed::hits);
+        Metrics.gauge("feed_cache.misses", feed::misses);
+        Metrics.gauge("feed_cache.hit_rate_pct", feed::hitRatePercent);
+        Metrics.gauge("feed_cache.rebuilds", feed::rebuilds);
+        Metrics.gauge("feed_cache.last_rebuild_us", feed::lastRebuildMicros);
+
+        switch (mode) {
+            case "threads" -> {
+                useCommandPool(Executors.newFixedThreadPool(workers()));
+                serveBlocking(port, Executors.newFixedThreadPool(50), "threads");  // <-- plain Java, no named arg
+            }
+            case "virtual" -> {
+                ExecutorService pool = virtualThreadPerTask();
+                useCommandPool(pool);
+                ClientHandler.useWriterPool(pool);
+                serveBlocking(port, pool, "virtual");
+            }
+            default -> serveNio(port);
+        }
+    }
 
-        ExecutorService pool = Executors.newFixedThreadPool(50);  // <-- plain Java, no named arg
+    private static int workers() {
+        return Integer.getInteger("pa.server.workers", Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+    }
+
+    private static void useCommandPool(ExecutorService pool) {
+        if (!Boolean.parseBoolean(System.getProperty("pa.server.reorder", "true")))
+            return;
+        KeyedExecutor commands = new KeyedExecutor(pool);
+        ClientHandler.useCommandPool(commands);
+        Metrics.gauge("server.ordered_keys_active", commands::activeKeys);
+    }
+
+    private static void serveNio(int port) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers());
+        useCommandPool(pool);
+        try {
+            new NioServer(port, pool).serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** One blocking ClientHandler per socket, run on the given executor. */
+    private static void serveBlocking(int port, ExecutorService pool, String label) {
         try (ServerSocket server = new ServerSocket(port)) {
-            System.out.println("Server listening on " + port);
+            System.out.println("Server listening on " + port + " (" + label + ")");
             while (true) {
                 Socket socket = server.accept();
                 pool.submit(new ClientHandler(socket));
@@ -33,4 +108,17 @@ public class ServerMain {
             pool.shutdown();
         }
     }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor() when running on Java 21+. The build still
+     * targets 17, so it is looked up reflectively; older runtimes get an unbounded platform pool.
+     */
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads need Java 21+, using a platform thread per connection");
+            return Executors.newCachedThreadPool();
+        }
+    }
 }
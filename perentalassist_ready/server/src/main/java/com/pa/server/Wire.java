@@ -0,0 +1,156 @@
+package com.pa.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The two encodings of a protocol message (a tag plus a list of fields).
+ *
+ * Text, the default: one line, fields joined by '|', optionally prefixed with #tag|.
+ * A field cannot contain '|' or a line break, so those are replaced by spaces.
+ *
+ * Binary, after a client sends the untagged line PROTO|BIN and gets PROTO_OK|BIN back
+ * (both still text): every message in both directions is a frame
+ *
+ *   u32 length of the rest | varint field count | per field: varint byte length, UTF-8 bytes
+ *
+ * where field 0 is the tag ("" = untagged) and the command or response fields follow, so
+ * content goes through unchanged and nothing has to be split or escaped.
+ */
+final class Wire {
+    static final String UPGRADE_OK = "PROTO_OK|BIN";
+    /** Reply when the server keeps talking text (-Dpa.server.binary=false). */
+    static final String UPGRADE_REFUSED = "PROTO_OK|TEXT";
+
+    static final int MAX_FRAME = 1 << 20;
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private Wire() {}
+
+    // ---- text
+
+    /** #tag|line or line, newline-terminated. */
+    static byte[] line(String tag, String line) {
+        String s = tag == null ? line + "\n" : "#" + tag + "|" + line + "\n";
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Fields joined by '|', each with '|' and line breaks blanked out. */
+    static String join(Object[] fields) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append('|');
+            String f = String.valueOf(fields[i]);
+            for (int j = 0; j < f.length(); j++) {
+                char ch = f.charAt(j);
+                sb.append(ch == '|' || ch == '\n' || ch == '\r' ? ' ' : ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** A text line's fields; split on '|' literally. */
+    static String[] split(String line) {
+        List<String> out = new ArrayList<>(8);
+        int from = 0;
+        int bar;
+        while ((bar = line.indexOf('|', from)) >= 0) {
+            out.add(line.substring(from, bar));
+            from = bar + 1;
+        }
+        out.add(line.substring(from));
+        return out.toArray(new String[0]);
+    }
+
+    // ---- binary
+
+    /** A complete frame, length prefix included. */
+    static byte[] frame(String tag, Object[] fields) {
+        if (fields == null)
+            fields = EMPTY;
+        byte[][] encoded = new byte[fields.length + 1][];
+        encoded[0] = tag == null ? new byte[0] : tag.getBytes(StandardCharsets.UTF_8);
+        int body = varintSize(encoded.length) + varintSize(encoded[0].length) + encoded[0].length;
+        for (int i = 0; i < fields.length; i++) {
+            byte[] f = String.valueOf(fields[i]).getBytes(StandardCharsets.UTF_8);
+            encoded[i + 1] = f;
+            body += varintSize(f.length) + f.length;
+        }
+        ByteBuffer out = ByteBuffer.allocate(4 + body);
+        out.putInt(body);
+        putVarint(out, encoded.length);
+        for (byte[] f : encoded) {
+            putVarint(out, f.length);
+            out.put(f);
+        }
+        return out.array();
+    }
+
+    /** Tag first ("" = untagged), then the fields, from a frame body without its length prefix. */
+    static String[] decode(ByteBuffer body) throws IOException {
+        try {
+            int n = getVarint(body);
+            if (n < 1 || n > body.remaining() + 1)
+                throw new IOException("bad field count " + n);
+            String[] out = new String[n];
+            for (int i = 0; i < n; i++) {
+                int len = getVarint(body);
+                if (len > body.remaining())
+                    throw new IOException("field overruns frame");
+                out[i] = new String(body.array(), body.arrayOffset() + body.position(), len, StandardCharsets.UTF_8);
+                body.position(body.position() + len);
+            }
+            return out;
+        } catch (RuntimeException e) {
+            throw new IOException("malformed frame", e);
+        }
+    }
+
+    /** Reads one frame (tag first), or null at a clean end of stream. */
+    static String[] readFrame(InputStream in) throws IOException {
+        byte[] head = in.readNBytes(4);
+        if (head.length == 0)
+            return null;
+        if (head.length < 4)
+            throw new IOException("truncated frame");
+        int len = ByteBuffer.wrap(head).getInt();
+        if (len < 1 || len > MAX_FRAME)
+            throw new IOException("bad frame length " + len);
+        byte[] body = in.readNBytes(len);
+        if (body.length < len)
+            throw new IOException("truncated frame");
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    private static int varintSize(int v) {
+        int n = 1;
+        while ((v >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static int getVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("varint too long");
+    }
+}
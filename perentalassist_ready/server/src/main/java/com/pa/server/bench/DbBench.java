@@ -0,0 +1,152 @@
+package com.pa.server.bench;
+
+import com.pa.server.dao.ConnectionPool;
+import com.pa.server.dao.Db;
+import com.pa.server.dao.StorageProfile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read/write concurrency of the storage profiles on a freshly seeded database.
+ *
+ * For each {@link StorageProfile}: seeds bench.posts posts, then runs bench.readers
+ * threads issuing the FEED_HOME query against bench.writers threads inserting chat
+ * messages, for bench.seconds. Prints throughput and p99 for both sides.
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.DbBench
+ *
+ * Options (system properties): bench.posts (20000), bench.readers (4), bench.writers (2),
+ * bench.seconds (5), bench.profiles (all, comma separated).
+ */
+public final class DbBench {
+    private static final String FEED_SQL =
+            "SELECT p.id,p.user_id,COALESCE(u.display_name,'Anonymous'),COALESCE(u.role,'USER'),p.content,p.created_at,COALESCE(p.image_url,''),IFNULL(p.anonymous,0) "
+                    + "FROM posts p LEFT JOIN users u ON u.id=p.user_id ORDER BY p.id DESC LIMIT 100";
+
+    public static void main(String[] args) throws Exception {
+        int posts = Integer.getInteger("bench.posts", 20000);
+        int readers = Integer.getInteger("bench.readers", 4);
+        int writers = Integer.getInteger("bench.writers", 2);
+        int seconds = Integer.getInteger("bench.seconds", 5);
+        String only = System.getProperty("bench.profiles", "");
+
+        for (StorageProfile profile : StorageProfile.values()) {
+            if (!only.isBlank() && !Arrays.asList(only.toUpperCase(Locale.ROOT).split(",")).contains(profile.name()))
+                continue;
+            Path dir = Files.createTempDirectory("pa-dbbench");
+            ConnectionPool pool = new ConnectionPool("jdbc:sqlite:" + dir.resolve("bench.db"), readers, profile);
+            try {
+                seed(pool, posts);
+                run(profile, pool, readers, writers, seconds);
+            } finally {
+                pool.close();
+                try (var files = Files.list(dir)) {
+                    files.forEach(f -> f.toFile().delete());
+                }
+                Files.deleteIfExists(dir);
+            }
+        }
+    }
+
+    private static void seed(ConnectionPool pool, int posts) throws SQLException {
+        try (Connection c = pool.writer()) {
+            Db.createSchema(c);
+            c.setAutoCommit(false);
+            try (PreparedStatement u = c.prepareStatement("INSERT INTO users(email,password_hash,display_name) VALUES (?,?,?)")) {
+                for (int i = 1; i <= 100; i++) {
+                    u.setString(1, "user" + i + "@bench");
+                    u.setString(2, "x");
+                    u.setString(3, "User " + i);
+                    u.addBatch();
+                }
+                u.executeBatch();
+            }
+            try (PreparedStatement p = c.prepareStatement("INSERT INTO posts(user_id,content,image_url,anonymous) VALUES (?,?,'',0)")) {
+                for (int i = 0; i < posts; i++) {
+                    p.setInt(1, 1 + i % 100);
+                    p.setString(2, "Seed post number " + i + " with a little bit of text to make rows realistic.");
+                    p.addBatch();
+                }
+                p.executeBatch();
+            }
+            c.commit();
+            c.setAutoCommit(true);
+        }
+    }
+
+    private static void run(StorageProfile profile, ConnectionPool pool, int readers, int writers, int seconds)
+            throws Exception {
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService exec = Executors.newFixedThreadPool(readers + writers);
+        List<Future<long[]>> reads = new ArrayList<>();
+        List<Future<long[]>> writes = new ArrayList<>();
+        for (int i = 0; i < readers; i++) {
+            reads.add(exec.submit(() -> loop(stop, () -> {
+                try (Connection c = pool.reader();
+                        Statement st = c.createStatement();
+                        ResultSet rs = st.executeQuery(FEED_SQL)) {
+                    while (rs.next())
+                        rs.getString(5);
+                }
+            })));
+        }
+        for (int i = 0; i < writers; i++) {
+            int sender = i + 1;
+            writes.add(exec.submit(() -> loop(stop, () -> {
+                try (Connection c = pool.writer();
+                        PreparedStatement ps = c.prepareStatement(
+                                "INSERT INTO chat_messages(conversation_id,sender_user_id,content) VALUES (?,?,?)")) {
+                    ps.setInt(1, 1);
+                    ps.setInt(2, sender);
+                    ps.setString(3, "bench message");
+                    ps.executeUpdate();
+                }
+            })));
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        exec.shutdown();
+        long[] r = merge(reads);
+        long[] w = merge(writes);
+        System.out.printf("%-7s reads: %7.0f/s p99=%6.2fms | writes: %6.0f/s p99=%6.2fms%n", profile,
+                r.length / (double) seconds, p99(r), w.length / (double) seconds, p99(w));
+    }
+
+    private interface Op {
+        void run() throws SQLException;
+    }
+
+    private static long[] loop(AtomicBoolean stop, Op op) throws SQLException {
+        long[] lat = new long[1 << 14];
+        int n = 0;
+        while (!stop.get()) {
+            long t0 = System.nanoTime();
+            op.run();
+            if (n == lat.length)
+                lat = Arrays.copyOf(lat, n * 2);
+            lat[n++] = System.nanoTime() - t0;
+        }
+        return Arrays.copyOf(lat, n);
+    }
+
+    private static long[] merge(List<Future<long[]>> parts) throws Exception {
+        long[] all = new long[0];
+        for (Future<long[]> f : parts) {
+            long[] p = f.get();
+            int old = all.length;
+            all = Arrays.copyOf(all, old + p.length);
+            System.arraycopy(p, 0, all, old, p.length);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static double p99(long[] sorted) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, sorted.length * 0.99)] / 1e6;
+    }
+}
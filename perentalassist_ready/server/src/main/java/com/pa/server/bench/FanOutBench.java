@@ -0,0 +1,152 @@
+package com.pa.server.bench;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fan-out to one big topic against a running server: bench.subs connections subscribe to
+ * conversation bench.conv, then another connection sends bench.messages CHAT_SENDs to it,
+ * one at a time. For each message it records how long the sender waited for its response
+ * and how long until every subscriber had the MSG push. Running it against a server
+ * started with -Dpa.server.fanout.threads=0 (delivery inline on the request thread) and
+ * then without shows what the fan-out stage takes off the request path:
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.FanOutBench
+ *
+ * Needs two descriptors per subscriber across bench and server (ulimit -n).
+ *
+ * Options (system properties): pa.host, pa.port, bench.subs (10000), bench.conv (1),
+ * bench.sender (1), bench.messages (50).
+ */
+public final class FanOutBench {
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("pa.host", "127.0.0.1");
+        int port = Integer.getInteger("pa.port", 5555);
+        int subs = Integer.getInteger("bench.subs", 10_000);
+        int conv = Integer.getInteger("bench.conv", 1);
+        int sender = Integer.getInteger("bench.sender", 1);
+        int messages = Integer.getInteger("bench.messages", 50);
+
+        Subscribers s = new Subscribers();
+        byte[] sub = ("CHAT_SUB|" + conv + "\n").getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < subs; i++)
+            s.connect(new InetSocketAddress(host, port), sub);
+        Thread reader = new Thread(s::readLoop, "bench-subscribers");
+        reader.setDaemon(true);
+        reader.start();
+        awaitCount(s.acks, subs, 60_000, "subscription acks");
+        System.out.printf("%d subscribers on conversation %d%n", subs, conv);
+
+        long[] response = new long[messages];
+        long[] delivered = new long[messages];
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in.readLine(); // WELCOME
+            for (int i = 0; i < messages; i++) {
+                long t0 = System.nanoTime();
+                out.write("#" + i + "|CHAT_SEND|" + conv + "|" + sender + "|fan-out bench " + i + "\n");
+                out.flush();
+                String end = "#" + i + "|.";
+                String line;
+                while ((line = in.readLine()) != null && !line.equals(end)) {
+                }
+                response[i] = System.nanoTime() - t0;
+                awaitCount(s.msgs, (long) subs * (i + 1), 60_000, "MSG pushes");
+                delivered[i] = System.nanoTime() - t0;
+            }
+        }
+        s.stop.set(true);
+
+        long total = Arrays.stream(delivered).sum();
+        Arrays.sort(response);
+        Arrays.sort(delivered);
+        System.out.printf("sender response   p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n",
+                ms(response, 0.50), ms(response, 0.99), ms(response, 1.0));
+        System.out.printf("all subscribers   p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms%n",
+                ms(delivered, 0.50), ms(delivered, 0.99), ms(delivered, 1.0));
+        System.out.printf("%.0f deliveries/s%n", (double) subs * messages / (total / 1e9));
+    }
+
+    private static double ms(long[] sorted, double q) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * q))] / 1e6;
+    }
+
+    private static void awaitCount(AtomicLong n, long target, long timeoutMs, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (n.get() < target) {
+            if (System.currentTimeMillis() > deadline)
+                throw new IllegalStateException("only " + n.get() + " of " + target + " " + what);
+            LockSupport.parkNanos(50_000);    // not a spin: the reader and the server need the cores
+        }
+    }
+
+    /** All subscriber sockets on one selector; counts MSG pushes and SUB_OK acks by first byte. */
+    private static final class Subscribers {
+        final AtomicLong msgs = new AtomicLong();
+        final AtomicLong acks = new AtomicLong();
+        final AtomicBoolean stop = new AtomicBoolean();
+        private final Selector selector;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+
+        Subscribers() throws IOException {
+            selector = Selector.open();
+        }
+
+        void connect(InetSocketAddress addr, byte[] subscribe) throws IOException {
+            SocketChannel ch = SocketChannel.open(addr);
+            ch.write(ByteBuffer.wrap(subscribe));
+            ch.configureBlocking(false);
+            ch.register(selector, SelectionKey.OP_READ, new boolean[] { true });   // at the start of a line
+        }
+
+        void readLoop() {
+            try {
+                while (!stop.get()) {
+                    selector.select(100);
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        boolean[] lineStart = (boolean[]) key.attachment();
+                        buf.clear();
+                        if (((SocketChannel) key.channel()).read(buf) < 0) {
+                            key.cancel();
+                            continue;
+                        }
+                        buf.flip();
+                        long m = 0;
+                        long a = 0;
+                        while (buf.hasRemaining()) {
+                            byte b = buf.get();
+                            if (lineStart[0]) {
+                                if (b == 'M')
+                                    m++;
+                                else if (b == 'S')
+                                    a++;
+                            }
+                            lineStart[0] = b == '\n';
+                        }
+                        if (m > 0)
+                            msgs.addAndGet(m);
+                        if (a > 0)
+                            acks.addAndGet(a);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.pa.server.bench;
+
+import com.pa.server.ClientHandler;
+import com.pa.server.ClientHub;
+import com.pa.server.Metrics;
+
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connection churn on a crowded {@link ClientHub}, in process: bench.topics chat and
+ * comment topics are held by bench.topics / bench.perConn idle connections, then
+ * bench.churns short-lived connections each subscribe to bench.perConn random topics plus
+ * the feed and disconnect. Prints the time per churn and the hub's size before and after;
+ * the latter should be equal, since topics left empty are dropped.
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.HubBench
+ *
+ * Options (system properties): bench.topics (1000000), bench.perConn (4), bench.churns (200000).
+ */
+public final class HubBench {
+
+    public static void main(String[] args) {
+        int topics = Integer.getInteger("bench.topics", 1_000_000);
+        int perConn = Integer.getInteger("bench.perConn", 4);
+        int churns = Integer.getInteger("bench.churns", 200_000);
+        ClientHub hub = ClientHub.get();
+
+        long t0 = System.nanoTime();
+        for (int t = 0; t < topics; t += perConn) {
+            ClientHandler idle = new ClientHandler((Socket) null);
+            for (int i = t; i < Math.min(topics, t + perConn); i++) {
+                if (i % 2 == 0)
+                    hub.subscribe(i, idle);
+                else
+                    hub.subscribeComment(i, idle);
+            }
+        }
+        System.out.printf("%d topics held by %d connections, set up in %d ms%n",
+                topics, (topics + perConn - 1) / perConn, (System.nanoTime() - t0) / 1_000_000);
+        System.out.println("before: " + hubStats());
+
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int n = 0; n < churns; n++) {
+                ClientHandler h = new ClientHandler((Socket) null);
+                for (int i = 0; i < perConn; i++)
+                    hub.subscribe(rnd.nextInt(topics), h);
+                hub.subscribeFeed(h);
+                hub.unregisterHandler(h, null);
+            }
+            System.out.printf("round %d: %.0f ns per connect-subscribe-disconnect%n",
+                    round, (System.nanoTime() - start) / (double) churns);
+        }
+        System.out.println("after:  " + hubStats());
+    }
+
+    private static String hubStats() {
+        var m = Metrics.snapshot();
+        return "hub.topics=" + m.get("hub.topics") + " hub.subscribed_handlers=" + m.get("hub.subscribed_handlers");
+    }
+}
@@ -0,0 +1,140 @@
+package com.pa.server.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection-capacity and command-latency benchmark against a running server.
+ *
+ * Opens bench.conns persistent connections and counts how many get their WELCOME,
+ * then drives bench.cmd from bench.active of them for bench.seconds and reports
+ * throughput and latency percentiles. Run it once per pa.server.mode to compare:
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.LoadBench \
+ *       -Dbench.conns=2000 -Dbench.active=32 -Dbench.cmd=PING
+ *
+ * Options (system properties): pa.host, pa.port, bench.conns (1000), bench.active (32),
+ * bench.seconds (10), bench.cmd (PING), bench.welcomeTimeoutMs (5000).
+ */
+public final class LoadBench {
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("pa.host", "127.0.0.1");
+        int port = Integer.getInteger("pa.port", 5555);
+        int conns = Integer.getInteger("bench.conns", 1000);
+        int active = Integer.getInteger("bench.active", 32);
+        int seconds = Integer.getInteger("bench.seconds", 10);
+        String cmd = System.getProperty("bench.cmd", "PING");
+        long welcomeTimeout = Long.getLong("bench.welcomeTimeoutMs", 5000);
+
+        List<Client> clients = new ArrayList<>(conns);
+        try {
+            for (int i = 0; i < conns; i++)
+                clients.add(new Client(new Socket(host, port)));
+
+            long deadline = System.currentTimeMillis() + welcomeTimeout;
+            List<Client> served = new ArrayList<>();
+            for (Client c : clients) {
+                if (c.awaitWelcome(deadline))
+                    served.add(c);
+            }
+            System.out.printf("connections: opened=%d served=%d%n", clients.size(), served.size());
+            if (served.isEmpty())
+                return;
+
+            List<Client> drivers = served.subList(0, Math.min(active, served.size()));
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            AtomicBoolean stop = new AtomicBoolean();
+            ExecutorService pool = Executors.newFixedThreadPool(drivers.size());
+            for (Client c : drivers) {
+                pool.submit(() -> {
+                    long[] local = new long[1 << 16];
+                    int n = 0;
+                    try {
+                        while (!stop.get()) {
+                            long t0 = System.nanoTime();
+                            c.request(cmd);
+                            long dt = System.nanoTime() - t0;
+                            if (n == local.length)
+                                local = Arrays.copyOf(local, n * 2);
+                            local[n++] = dt;
+                        }
+                    } catch (IOException e) {
+                        System.out.println("driver failed: " + e.getMessage());
+                    }
+                    for (int i = 0; i < n; i++)
+                        latencies.add(local[i]);
+                    return null;
+                });
+            }
+            Thread.sleep(seconds * 1000L);
+            stop.set(true);
+            pool.shutdown();
+            pool.awaitTermination(30, TimeUnit.SECONDS);
+
+            long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) {
+                System.out.println("no completed commands");
+                return;
+            }
+            System.out.printf("command %s: active=%d ops=%d throughput=%.0f/s p50=%.2fms p99=%.2fms max=%.2fms%n",
+                    cmd, drivers.size(), sorted.length, sorted.length / (double) seconds,
+                    pct(sorted, 0.50), pct(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+        } finally {
+            for (Client c : clients)
+                c.close();
+        }
+    }
+
+    private static double pct(long[] sorted, double q) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(q * sorted.length))] / 1e6;
+    }
+
+    private static final class Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        boolean awaitWelcome(long deadline) {
+            try {
+                socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                boolean ok = "WELCOME".equals(in.readLine());
+                socket.setSoTimeout(0);
+                return ok;
+            } catch (IOException e) {   // includes SocketTimeoutException: never served
+                return false;
+            }
+        }
+
+        /** Sends one command and reads up to its last line (same rules as the client's ApiService). */
+        void request(String cmd) throws IOException {
+            out.write(cmd);
+            out.write('\n');
+            out.flush();
+            String r;
+            while ((r = in.readLine()) != null) {
+                if ("END".equals(r) || "PONG".equals(r) || r.startsWith("ERR") || r.endsWith("_OK")
+                        || r.startsWith("LOGIN_OK"))
+                    return;
+            }
+            throw new EOFException("server closed the connection");
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
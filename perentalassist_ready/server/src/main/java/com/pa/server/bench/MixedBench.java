@@ -0,0 +1,158 @@
+package com.pa.server.bench;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mixed slow/fast workload over pipelined, tagged (#rid|) requests against a running server.
+ *
+ * Every connection keeps bench.depth requests in flight; one in bench.slowEvery is
+ * bench.slow, the rest bench.fast. Prints latency percentiles per kind, so running it
+ * against a server started with -Dpa.server.reorder=false and then =true shows how much
+ * a fast command waited behind slow ones on the same connection:
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.MixedBench -Dbench.seedPosts=5000
+ *
+ * Options (system properties): pa.host, pa.port, bench.conns (8), bench.depth (8),
+ * bench.seconds (10), bench.slow (FEED_BY_USER|1), bench.fast (PING), bench.slowEvery (4),
+ * bench.seedPosts (0: posts by user 1 created first, to give the slow command some work).
+ */
+public final class MixedBench {
+
+    public static void main(String[] args) throws Exception {
+        String host = System.getProperty("pa.host", "127.0.0.1");
+        int port = Integer.getInteger("pa.port", 5555);
+        int conns = Integer.getInteger("bench.conns", 8);
+        int depth = Integer.getInteger("bench.depth", 8);
+        int seconds = Integer.getInteger("bench.seconds", 10);
+        String slow = System.getProperty("bench.slow", "FEED_BY_USER|1");
+        String fast = System.getProperty("bench.fast", "PING");
+        int slowEvery = Math.max(1, Integer.getInteger("bench.slowEvery", 4));
+        int seed = Integer.getInteger("bench.seedPosts", 0);
+
+        if (seed > 0) {
+            try (Pipe p = new Pipe(new Socket(host, port), seed)) {
+                for (int i = 0; i < seed; i++)
+                    p.send("POST_CREATE|1|bench post " + i, false);
+                p.drain();
+            }
+            System.out.printf("seeded %d posts%n", seed);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Pipe> pipes = new ArrayList<>();
+        ExecutorService drivers = Executors.newFixedThreadPool(conns);
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < conns; i++) {
+            Pipe p = new Pipe(new Socket(host, port), depth);
+            pipes.add(p);
+            running.add(drivers.submit(() -> {
+                long n = 0;
+                while (!stop.get()) {
+                    boolean isSlow = n++ % slowEvery == 0;
+                    p.send(isSlow ? slow : fast, isSlow);
+                }
+                p.drain();
+                return null;
+            }));
+        }
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Future<?> f : running)
+            f.get();
+        drivers.shutdown();
+
+        long[] fastLat = collect(pipes, false);
+        long[] slowLat = collect(pipes, true);
+        for (Pipe p : pipes)
+            p.close();
+        report("fast " + fast, fastLat, seconds);
+        report("slow " + slow, slowLat, seconds);
+    }
+
+    private static long[] collect(List<Pipe> pipes, boolean slow) {
+        long[] all = pipes.stream().flatMapToLong(p -> (slow ? p.slowLat : p.fastLat).stream().mapToLong(Long::longValue))
+                .toArray();
+        Arrays.sort(all);
+        return all;
+    }
+
+    private static void report(String label, long[] sorted, int seconds) {
+        if (sorted.length == 0) {
+            System.out.printf("%-24s no responses%n", label);
+            return;
+        }
+        System.out.printf("%-24s %8.0f/s  p50=%7.2fms  p99=%7.2fms  max=%7.2fms%n", label,
+                sorted.length / (double) seconds, pct(sorted, 0.50), pct(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double pct(long[] sorted, double q) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * q)] / 1e6;
+    }
+
+    /** One connection with up to depth tagged requests outstanding. */
+    private static final class Pipe implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private final Semaphore window;
+        private final int depth;
+        private final ConcurrentMap<String, long[]> sent = new ConcurrentHashMap<>();   // tag -> {t0, slow}
+        final List<Long> fastLat = Collections.synchronizedList(new ArrayList<>());
+        final List<Long> slowLat = Collections.synchronizedList(new ArrayList<>());
+        private long next;
+
+        Pipe(Socket socket, int depth) throws IOException {
+            this.socket = socket;
+            this.depth = depth;
+            this.window = new Semaphore(depth);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in.readLine(); // WELCOME
+            Thread reader = new Thread(this::readLoop, "bench-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(String cmd, boolean slow) throws IOException, InterruptedException {
+            window.acquire();
+            String tag = "#" + (next++) + "|";
+            sent.put(tag, new long[] { System.nanoTime(), slow ? 1 : 0 });
+            synchronized (out) {
+                out.write(tag + cmd + "\n");
+                out.flush();
+            }
+        }
+
+        void drain() throws InterruptedException {
+            window.acquire(depth);
+            window.release(depth);
+        }
+
+        private void readLoop() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int bar = line.indexOf('|');
+                    if (!line.startsWith("#") || bar < 0 || !line.substring(bar + 1).equals("."))
+                        continue;
+                    long[] s = sent.remove(line.substring(0, bar + 1));
+                    if (s == null)
+                        continue;
+                    (s[1] == 1 ? slowLat : fastLat).add(System.nanoTime() - s[0]);
+                    window.release();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
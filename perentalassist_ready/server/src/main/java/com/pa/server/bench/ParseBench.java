@@ -0,0 +1,97 @@
+package com.pa.server.bench;
+
+import com.pa.server.CommandTokenizer;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request parsing cost: the old path (decode the line, cut the tag, String.split) against
+ * {@link CommandTokenizer} on the raw bytes. Both then parse the numeric arguments the way
+ * a handler would, with Integer.parseInt on the field Strings. Prints ns and allocated bytes
+ * per request after a warm-up; allocation comes from the JVM's per-thread counter, so run
+ * it on HotSpot. A plain timed loop like the other benches, not JMH: no forking or
+ * dead-code guards beyond a volatile sink, so compare the two rows of one run and do not
+ * read the numbers as absolutes.
+ *
+ *   mvn -pl server exec:java -Dexec.mainClass=com.pa.server.bench.ParseBench
+ *
+ * Options (system properties): bench.iterations (5000000), bench.rounds (5).
+ */
+public final class ParseBench {
+    private static final String[] SAMPLE = {
+            "#1a|PING",
+            "#1b|FEED_PAGE|0|20",
+            "#1c|CHAT_SEND|12|34|see you at the school gate at 3",
+            "#1d|CHAT_FETCH|12|4711",
+            "#1e|COMMENTS_WITH_USERS|815",
+            "AUTH|34",
+            "#1f|POST_CREATE|34|Does anyone know a good speech therapist near the centre?||0",
+            "#20|USER_PROFILE|34",
+    };
+    // which fields the handler would Integer.parseInt, per sample (after the command)
+    private static final int[][] INT_ARGS = { {}, { 1, 2 }, { 1, 2 }, { 1, 2 }, { 1 }, { 1 }, { 1, 4 }, { 1 } };
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int iterations = Integer.getInteger("bench.iterations", 5_000_000);
+        int rounds = Integer.getInteger("bench.rounds", 5);
+        byte[][] lines = new byte[SAMPLE.length][];
+        for (int i = 0; i < SAMPLE.length; i++)
+            lines[i] = SAMPLE[i].getBytes(StandardCharsets.UTF_8);
+
+        CommandTokenizer tokens = new CommandTokenizer();
+        for (int r = 0; r < rounds; r++) {
+            boolean last = r == rounds - 1;
+            measure("split", iterations, last, () -> {
+                for (int i = 0; i < lines.length; i++)
+                    sink += viaSplit(lines[i], INT_ARGS[i]);
+            }, lines.length);
+            measure("tokenizer", iterations, last, () -> {
+                for (int i = 0; i < lines.length; i++)
+                    sink += viaTokenizer(tokens, lines[i], INT_ARGS[i]);
+            }, lines.length);
+        }
+    }
+
+    private static long viaSplit(byte[] raw, int[] ints) {
+        String line = new String(raw, StandardCharsets.UTF_8);
+        String tag = null;
+        if (line.charAt(0) == '#') {
+            int bar = line.indexOf('|');
+            tag = line.substring(1, bar);
+            line = line.substring(bar + 1);
+        }
+        String[] p = line.split("\\|", -1);
+        String cmd = p[0].trim();
+        long v = cmd.length() + (tag == null ? 0 : 1);
+        for (int i : ints)
+            v += Integer.parseInt(p[i]);
+        return v;
+    }
+
+    private static long viaTokenizer(CommandTokenizer tokens, byte[] raw, int[] ints) {
+        String[] p = tokens.tokenize(raw, 0, raw.length);
+        String cmd = p[0].trim();
+        long v = cmd.length() + (tokens.tag() == null ? 0 : 1);
+        for (int i : ints)
+            v += Integer.parseInt(p[i]);
+        return v;
+    }
+
+    private static void measure(String label, int iterations, boolean print, Runnable batch, int perBatch) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        int batches = iterations / perBatch;
+        long a0 = threads.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < batches; i++)
+            batch.run();
+        long ns = System.nanoTime() - t0;
+        long bytes = threads.getThreadAllocatedBytes(tid) - a0;
+        long n = (long) batches * perBatch;
+        if (print)
+            System.out.printf("%-10s %7.1f ns/request  %6.1f B/request%n", label, ns / (double) n, bytes / (double) n);
+    }
+}
@@ -0,0 +1,266 @@
+package com.pa.server.dao;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-size SQLite pool: one writer connection (SQLite allows a single writer anyway)
+ * and N read-only reader connections. Connections handed out are thin proxies whose
+ * close() puts the physical connection back instead of closing it, so the usual
+ * try-with-resources in the handlers keeps working.
+ *
+ * Each physical connection gets the {@link StorageProfile} PRAGMAs once, when opened,
+ * and keeps its own {@link StatementCache} for prepareStatement(sql[, keys]).
+ * {@link #getConnection()} returns the writer, which can also read.
+ */
+public final class ConnectionPool implements DataSource {
+    private final String url;
+    private final StorageProfile profile;
+    private final int statementCacheSize = Integer.getInteger("pa.db.statementCache", 64);
+    private final BlockingQueue<Physical> writer = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<Physical> readers;
+    private final List<Physical> all = new ArrayList<>();
+    private volatile boolean closed;
+
+    /** A physical connection and the statements prepared on it. */
+    private record Physical(Connection conn, StatementCache statements, boolean readOnly) {
+    }
+
+    public ConnectionPool(String url, int readerCount, StorageProfile profile) throws SQLException {
+        this.url = url;
+        this.profile = profile;
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        try {
+            writer.add(open(false));
+            for (int i = 0; i < Math.max(1, readerCount); i++)
+                readers.add(open(true));
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private Physical open(boolean readOnly) throws SQLException {
+        org.sqlite.SQLiteConfig cfg = new org.sqlite.SQLiteConfig();
+        cfg.enforceForeignKeys(true);
+        cfg.setReadOnly(readOnly);
+        Connection c = cfg.createConnection(url);
+        try {
+            profile.apply(c, !readOnly);
+        } catch (SQLException e) {
+            c.close();
+            throw e;
+        }
+        Physical p = new Physical(c, new StatementCache(c, statementCacheSize), readOnly);
+        synchronized (all) {
+            all.add(p);
+        }
+        return p;
+    }
+
+    /**
+     * A fresh connection in place of p, whose physical connection was closed under it.
+     * p stays the pool's if opening fails, so the next lease tries again.
+     */
+    private Physical reopen(Physical p, BlockingQueue<Physical> home) throws SQLException {
+        p.statements().closeAll();
+        Physical fresh;
+        try {
+            fresh = open(p.readOnly());
+        } catch (SQLException e) {
+            home.add(p);
+            throw e;
+        }
+        synchronized (all) {
+            all.remove(p);
+        }
+        return fresh;
+    }
+
+    public static long statementCacheHits() {
+        return StatementCache.hits();
+    }
+
+    public static long statementCacheMisses() {
+        return StatementCache.misses();
+    }
+
+    public static long statementCacheEvictions() {
+        return StatementCache.evictions();
+    }
+
+    public StorageProfile profile() {
+        return profile;
+    }
+
+    /** Blocks until the single writer connection is free. */
+    public Connection writer() throws SQLException {
+        return lease(writer);
+    }
+
+    /** Blocks until one of the read-only connections is free. */
+    public Connection reader() throws SQLException {
+        return lease(readers);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return writer();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return writer();
+    }
+
+    private Connection lease(BlockingQueue<Physical> from) throws SQLException {
+        if (closed)
+            throw new SQLException("pool closed");
+        Physical real;
+        try {
+            real = from.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted waiting for a connection", e);
+        }
+        if (real.conn().isClosed())
+            real = reopen(real, from);     // a release could not replace it
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new Lease(real, from));
+    }
+
+    /** Handle for one checkout; after close() it is dead and the physical connection is back in the pool. */
+    private final class Lease implements InvocationHandler {
+        private Physical real;
+        private final BlockingQueue<Physical> home;
+
+        Lease(Physical real, BlockingQueue<Physical> home) {
+            this.real = real;
+            this.home = home;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            switch (m.getName()) {
+                case "close" -> {
+                    release();
+                    return null;
+                }
+                case "isClosed" -> {
+                    return real == null || real.conn().isClosed();
+                }
+                case "unwrap" -> {
+                    if (((Class<?>) args[0]).isInstance(proxy))
+                        return proxy;
+                }
+                case "equals" -> {
+                    return proxy == args[0];
+                }
+                case "hashCode" -> {
+                    return System.identityHashCode(proxy);
+                }
+                case "toString" -> {
+                    return "Pooled[" + (real == null ? "returned" : real.conn()) + "]";
+                }
+                case "prepareStatement" -> {
+                    if (real != null && args.length <= 2 && (args.length == 1 || m.getParameterTypes()[1] == int.class))
+                        return real.statements().prepare((String) args[0],
+                                args.length == 1 ? Statement.NO_GENERATED_KEYS : (Integer) args[1]);
+                }
+                default -> {
+                }
+            }
+            if (real == null)
+                throw new SQLException("connection already returned to the pool");
+            try {
+                return m.invoke(real.conn(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void release() throws SQLException {
+            Physical p = real;
+            if (p == null)
+                return;
+            real = null;
+            Connection c = p.conn();
+            try {
+                p.statements().releaseAll();
+                if (!c.isClosed() && !c.getAutoCommit()) {
+                    c.rollback();
+                    c.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                p.statements().closeAll();
+                try {
+                    c.close();
+                } catch (SQLException ignored) {
+                }
+            }
+            if (c.isClosed() && !closed)
+                p = reopen(p, home);     // someone closed the physical connection; replace it
+            home.add(p);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (all) {
+            for (Physical p : all) {
+                p.statements().closeAll();
+                try {
+                    p.conn().close();
+                } catch (SQLException ignored) {
+                }
+            }
+        }
+    }
+
+    // ---- DataSource boilerplate
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("not a wrapper for " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
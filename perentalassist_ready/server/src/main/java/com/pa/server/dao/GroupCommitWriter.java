@@ -0,0 +1,147 @@
+package com.pa.server.dao;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One thread that owns the hot INSERTs (chat messages, comments, posts) and commits them
+ * in batches: it takes the first queued insert, keeps collecting until maxBatch inserts
+ * or maxDelay has passed, runs them all in one transaction and then completes every
+ * caller's future. A burst of N messages costs one commit (one fsync) instead of N.
+ *
+ * Each insert is sent with RETURNING id, created_at, so callers get the row id and the
+ * server timestamp without reading the row back. A failing insert (e.g. a foreign key)
+ * only fails its own future; SQLite rolls back just that statement.
+ */
+public final class GroupCommitWriter {
+    private static final LongAdder BATCHES = new LongAdder();
+    private static final LongAdder INSERTS = new LongAdder();
+
+    /** The generated row id and created_at of one insert. */
+    public record Inserted(int id, String createdAt) {
+    }
+
+    private record Request(String sql, Object[] args, CompletableFuture<Inserted> done) {
+    }
+
+    private final ConnectionPool pool;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    public GroupCommitWriter(ConnectionPool pool, int maxBatch, long maxDelayMicros) {
+        this.pool = pool;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxDelayMicros));
+        this.thread = new Thread(this::loop, "pa-db-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static long batches() {
+        return BATCHES.sum();
+    }
+
+    public static long inserts() {
+        return INSERTS.sum();
+    }
+
+    /**
+     * Queues one INSERT; sql must not have a RETURNING clause of its own and the table
+     * needs id and created_at columns.
+     */
+    public CompletableFuture<Inserted> insert(String sql, Object... args) {
+        CompletableFuture<Inserted> f = new CompletableFuture<>();
+        queue.add(new Request(sql + " RETURNING id, created_at", args, f));
+        return f;
+    }
+
+    /** {@link #insert} and wait for the commit; SQL errors come back as SQLException. */
+    public Inserted insertAndWait(String sql, Object... args) throws SQLException {
+        try {
+            return insert(sql, args).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException se)
+                throw se;
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    private void loop() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0)
+                        continue;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0)
+                        break;
+                    Request r = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (r == null)
+                        break;
+                    batch.add(r);
+                }
+                commit(batch);
+            } catch (InterruptedException e) {
+                for (Request r : batch)
+                    r.done().completeExceptionally(new SQLException("writer stopped"));
+                return;
+            } catch (RuntimeException e) {
+                for (Request r : batch)
+                    r.done().completeExceptionally(e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Request> batch) {
+        Inserted[] results = new Inserted[batch.size()];
+        SQLException[] errors = new SQLException[batch.size()];
+        try (Connection c = pool.writer()) {
+            c.setAutoCommit(false);
+            for (int i = 0; i < batch.size(); i++) {
+                Request r = batch.get(i);
+                try (PreparedStatement ps = c.prepareStatement(r.sql())) {
+                    for (int a = 0; a < r.args().length; a++)
+                        ps.setObject(a + 1, r.args()[a]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        results[i] = new Inserted(rs.getInt(1), rs.getString(2));
+                    }
+                } catch (SQLException e) {
+                    errors[i] = e;
+                }
+            }
+            c.commit();
+            c.setAutoCommit(true);
+        } catch (SQLException e) {
+            // nothing in the batch is durable; the lease rolls back on close
+            for (Request r : batch)
+                r.done().completeExceptionally(e);
+            return;
+        }
+        BATCHES.increment();
+        INSERTS.add(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null)
+                batch.get(i).done().completeExceptionally(errors[i]);
+            else
+                batch.get(i).done().complete(results[i]);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.pa.server.dao;
+
+import java.sql.*;
+import java.util.List;
+
+/**
+ * Versioned schema migrations. Applied versions are recorded in schema_version, so
+ * startup only runs the ones a database has not seen yet, each in its own transaction.
+ * Append new migrations at the end; never edit one that has shipped.
+ */
+final class Migrations {
+
+    private interface Step {
+        void apply(Connection c) throws SQLException;
+    }
+
+    private record Migration(int version, String description, Step step) {}
+
+    private static final List<Migration> ALL = List.of(
+            new Migration(1, "baseline tables", c -> {
+                try (Statement st = c.createStatement()) {
+                    baseline(st);
+                }
+            }),
+            // databases from before image/anonymous support
+            new Migration(2, "posts.image_url, posts.anonymous, comments.image_url", c -> {
+                addColumnIfMissing(c, "posts", "image_url", "TEXT");
+                addColumnIfMissing(c, "posts", "anonymous", "INTEGER");
+                addColumnIfMissing(c, "comments", "image_url", "TEXT");
+            }),
+            new Migration(3, "indexes for chat, comments, appointments, schedules and feeds", c -> {
+                try (Statement st = c.createStatement()) {
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_chat_messages_conv_id ON chat_messages(conversation_id,id)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_chat_members_user ON chat_members(user_id,conversation_id)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_chat_members_conv ON chat_members(conversation_id,user_id)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_comments_post ON comments(post_id,id)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_appointments_doctor_start ON appointments(doctor_id,start_at)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_doctor_schedules_doctor_dow ON doctor_schedules(doctor_id,day_of_week)");
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS idx_posts_user_id ON posts(user_id,id)");
+                }
+            }),
+            // change log behind FEED_SINCE; the triggers keep it right whoever writes to posts
+            new Migration(4, "post_changes log with triggers on posts", c -> {
+                try (Statement st = c.createStatement()) {
+                    st.executeUpdate("""
+                      CREATE TABLE IF NOT EXISTS post_changes(
+                        version INTEGER PRIMARY KEY AUTOINCREMENT,
+                        post_id INTEGER NOT NULL,
+                        op TEXT NOT NULL
+                      )
+                    """);
+                    st.executeUpdate("""
+                      CREATE TRIGGER IF NOT EXISTS trg_posts_insert AFTER INSERT ON posts
+                      BEGIN INSERT INTO post_changes(post_id,op) VALUES (NEW.id,'I'); END
+                    """);
+                    st.executeUpdate("""
+                      CREATE TRIGGER IF NOT EXISTS trg_posts_update AFTER UPDATE ON posts
+                      BEGIN INSERT INTO post_changes(post_id,op) VALUES (NEW.id,'U'); END
+                    """);
+                    st.executeUpdate("""
+                      CREATE TRIGGER IF NOT EXISTS trg_posts_delete AFTER DELETE ON posts
+                      BEGIN INSERT INTO post_changes(post_id,op) VALUES (OLD.id,'D'); END
+                    """);
+                }
+            }),
+            // keeps post_changes (and the FEED_SINCE scans over it) bounded; clients older than
+            // the window get FEED_RESET, see FeedCache.since
+            new Migration(5, "prune post_changes to the newest 10000 versions", c -> {
+                try (Statement st = c.createStatement()) {
+                    st.executeUpdate("DELETE FROM post_changes WHERE version <= (SELECT MAX(version) FROM post_changes) - 10000");
+                    st.executeUpdate("""
+                      CREATE TRIGGER IF NOT EXISTS trg_post_changes_prune AFTER INSERT ON post_changes
+                      BEGIN DELETE FROM post_changes WHERE version <= NEW.version - 10000; END
+                    """);
+                }
+            }));
+
+    private Migrations() {}
+
+    static void migrate(Connection c) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.executeUpdate("""
+              CREATE TABLE IF NOT EXISTS schema_version(
+                version INTEGER PRIMARY KEY,
+                description TEXT,
+                applied_at DATETIME DEFAULT CURRENT_TIMESTAMP
+              )
+            """);
+        }
+        int current = currentVersion(c);
+        for (Migration m : ALL) {
+            if (m.version() <= current)
+                continue;
+            boolean auto = c.getAutoCommit();
+            c.setAutoCommit(false);
+            try {
+                m.step().apply(c);
+                try (PreparedStatement ps = c.prepareStatement(
+                        "INSERT INTO schema_version(version,description) VALUES (?,?)")) {
+                    ps.setInt(1, m.version());
+                    ps.setString(2, m.description());
+                    ps.executeUpdate();
+                }
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw new SQLException("migration " + m.version() + " (" + m.description() + ") failed", e);
+            } finally {
+                c.setAutoCommit(auto);
+            }
+            System.out.println("Applied schema migration " + m.version() + ": " + m.description());
+        }
+    }
+
+    static int currentVersion(Connection c) throws SQLException {
+        try (Statement st = c.createStatement();
+                ResultSet rs = st.executeQuery("SELECT IFNULL(MAX(version),0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void baseline(Statement st) throws SQLException {
+        // users
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS users(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            email TEXT UNIQUE,
+            password_hash TEXT,
+            display_name TEXT,
+            role TEXT DEFAULT 'USER'
+          )
+        """);
+
+        // posts (with image_url and anonymous flag)
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS posts(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            user_id INTEGER,
+            content TEXT,
+            image_url TEXT,
+            anonymous INTEGER DEFAULT 0,
+            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+          )
+        """);
+
+        // comments (with image_url)
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS comments(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            post_id INTEGER,
+            user_id INTEGER,
+            content TEXT,
+            image_url TEXT,
+            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+          )
+        """);
+
+        // chat
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS chat_conversations(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            title TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS chat_members(
+            conversation_id INTEGER,
+            user_id INTEGER
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS chat_messages(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            conversation_id INTEGER,
+            sender_user_id INTEGER,
+            content TEXT,
+            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+          )
+        """);
+
+        // doctors / schedules / appts
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS doctors(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            user_id INTEGER,
+            name TEXT,
+            specialty TEXT,
+            bio TEXT,
+            photo_url TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS doctor_schedules(
+            doctor_id INTEGER,
+            day_of_week INTEGER,
+            start_time TEXT,
+            end_time TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS appointments(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            user_id INTEGER,
+            doctor_id INTEGER,
+            start_at TEXT,
+            end_at TEXT,
+            video_url TEXT
+          )
+        """);
+
+        // health sessions
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS health_sessions(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            name TEXT,
+            short_desc TEXT,
+            date TEXT,
+            start_time TEXT,
+            end_time TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS health_session_locations(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            session_id INTEGER,
+            place TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS health_session_registrations(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            session_id INTEGER,
+            location_id INTEGER,
+            user_id INTEGER,
+            child_name TEXT,
+            child_age INTEGER,
+            prev_vaccines TEXT,
+            prev_diseases TEXT,
+            created_at DATETIME DEFAULT CURRENT_TIMESTAMP
+          )
+        """);
+        // optional outcomes table (for tests/vaccines actually taken)
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS health_session_outcomes(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            registration_id INTEGER,
+            type TEXT,
+            notes TEXT,
+            taken_at DATETIME DEFAULT CURRENT_TIMESTAMP
+          )
+        """);
+
+        // teachers
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS teachers(
+            id INTEGER PRIMARY KEY AUTOINCREMENT,
+            user_id INTEGER,
+            name TEXT,
+            qualification TEXT,
+            salary_min INTEGER,
+            salary_max INTEGER,
+            photo_url TEXT
+          )
+        """);
+        st.executeUpdate("""
+          CREATE TABLE IF NOT EXISTS teacher_schedules(
+            teacher_id INTEGER,
+            day_of_week INTEGER,
+            start_time TEXT,
+            end_time TEXT
+          )
+        """);
+    }
+
+    private static void addColumnIfMissing(Connection c, String table, String col, String type) throws SQLException {
+        boolean exists = false;
+        try (PreparedStatement ps = c.prepareStatement("PRAGMA table_info(" + table + ")")) {
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (col.equalsIgnoreCase(rs.getString("name"))) { exists = true; break; }
+                }
+            }
+        }
+        if (!exists) {
+            try (Statement st = c.createStatement()) {
+                st.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + col + " " + type);
+            }
+        }
+    }
+}
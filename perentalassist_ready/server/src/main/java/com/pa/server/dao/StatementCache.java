@@ -0,0 +1,161 @@
+package com.pa.server.dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LRU cache of prepared statements for one physical connection, keyed by SQL text.
+ * Only the thread holding the connection's lease touches it, so it is not synchronized.
+ *
+ * Callers get a proxy whose close() clears the parameters and keeps the statement for
+ * the next lease, so handlers' try-with-resources blocks stay as they are. If the same
+ * SQL is already open in the current lease, a plain uncached statement is prepared.
+ */
+final class StatementCache {
+    private static final LongAdder HITS = new LongAdder();
+    private static final LongAdder MISSES = new LongAdder();
+    private static final LongAdder EVICTIONS = new LongAdder();
+
+    private final Connection real;
+    private final int capacity;
+    private final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final class Entry {
+        final PreparedStatement ps;
+        boolean inUse;
+        boolean evicted;
+
+        Entry(PreparedStatement ps) {
+            this.ps = ps;
+        }
+    }
+
+    StatementCache(Connection real, int capacity) {
+        this.real = real;
+        this.capacity = capacity;
+    }
+
+    static long hits() {
+        return HITS.sum();
+    }
+
+    static long misses() {
+        return MISSES.sum();
+    }
+
+    static long evictions() {
+        return EVICTIONS.sum();
+    }
+
+    /** autoGeneratedKeys is Statement.NO_GENERATED_KEYS for the plain prepareStatement(sql). */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        if (capacity <= 0)
+            return real.prepareStatement(sql, autoGeneratedKeys);
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "K:" + sql : sql;
+        Entry e = lru.get(key);
+        if (e != null && e.inUse)
+            return real.prepareStatement(sql, autoGeneratedKeys);
+        if (e == null) {
+            MISSES.increment();
+            e = new Entry(real.prepareStatement(sql, autoGeneratedKeys));
+            e.inUse = true;
+            lru.put(key, e);
+            evictOverflow();
+        } else {
+            HITS.increment();
+            e.inUse = true;
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, new Handle(e));
+    }
+
+    /** One checkout of a cached statement; dead after close() even if the entry is handed out again. */
+    private final class Handle implements InvocationHandler {
+        private final Entry entry;
+        private boolean closed;
+
+        Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            switch (m.getName()) {
+                case "close" -> {
+                    if (!closed) {
+                        closed = true;
+                        giveBack(entry);
+                    }
+                    return null;
+                }
+                case "isClosed" -> {
+                    return closed;
+                }
+                default -> {
+                }
+            }
+            if (closed)
+                throw new SQLException("statement already closed");
+            try {
+                return m.invoke(entry.ps, args);
+            } catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+    private void giveBack(Entry e) throws SQLException {
+        if (!e.inUse)
+            return;
+        e.inUse = false;
+        if (e.evicted) {
+            e.ps.close();
+            return;
+        }
+        try {
+            e.ps.clearParameters();
+            e.ps.clearBatch();
+        } catch (SQLException ex) {
+            lru.values().remove(e);
+            e.ps.close();
+        }
+    }
+
+    private void evictOverflow() throws SQLException {
+        Iterator<Map.Entry<String, Entry>> it = lru.entrySet().iterator();
+        while (lru.size() > capacity && it.hasNext()) {
+            Entry e = it.next().getValue();
+            it.remove();
+            EVICTIONS.increment();
+            e.evicted = true;
+            if (!e.inUse)
+                e.ps.close();
+        }
+    }
+
+    /** Called when the lease ends: statements the caller forgot to close become reusable again. */
+    void releaseAll() throws SQLException {
+        for (Entry e : lru.values().toArray(new Entry[0]))
+            giveBack(e);
+    }
+
+    void closeAll() {
+        for (Entry e : lru.values()) {
+            try {
+                e.ps.close();
+            } catch (SQLException ignored) {
+            }
+        }
+        lru.clear();
+    }
+}
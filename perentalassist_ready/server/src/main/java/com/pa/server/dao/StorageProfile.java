@@ -0,0 +1,55 @@
+package com.pa.server.dao;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * PRAGMA sets applied once to every pooled connection when it is opened.
+ * Chosen at startup with -Dpa.db.profile=wal|legacy (default wal).
+ */
+public enum StorageProfile {
+    /** SQLite defaults: rollback journal, a writer blocks every reader while it commits. */
+    LEGACY("DELETE", "FULL", 0, -2000, "DEFAULT", 5000),
+
+    /**
+     * Write-ahead log: readers keep going while CHAT_SEND/COMMENT_CREATE commit. NORMAL sync
+     * can lose the last transactions on power loss but never corrupts the database.
+     */
+    WAL("WAL", "NORMAL", 256L << 20, -16000, "MEMORY", 5000);
+
+    private final String journalMode;
+    private final String synchronous;
+    private final long mmapSize;
+    private final int cacheSize;        // negative = KiB, as in PRAGMA cache_size
+    private final String tempStore;
+    private final int busyTimeoutMs;
+
+    StorageProfile(String journalMode, String synchronous, long mmapSize, int cacheSize, String tempStore,
+            int busyTimeoutMs) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.busyTimeoutMs = busyTimeoutMs;
+    }
+
+    public static StorageProfile fromName(String name) {
+        return name == null || name.isBlank() ? WAL : valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /** journal_mode is stored in the database file, so only the writer (opened first) sets it. */
+    void apply(Connection c, boolean writer) throws SQLException {
+        try (Statement st = c.createStatement()) {
+            st.execute("PRAGMA busy_timeout=" + busyTimeoutMs);
+            if (writer)
+                st.execute("PRAGMA journal_mode=" + journalMode);
+            st.execute("PRAGMA synchronous=" + synchronous);
+            st.execute("PRAGMA mmap_size=" + mmapSize);
+            st.execute("PRAGMA cache_size=" + cacheSize);
+            st.execute("PRAGMA temp_store=" + tempStore);
+        }
+    }
+}